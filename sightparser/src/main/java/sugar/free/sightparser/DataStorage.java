@@ -2,6 +2,8 @@ package sugar.free.sightparser;
 
 import android.content.SharedPreferences;
 
+import java.util.Map;
+
 public class DataStorage {
 
     private SharedPreferences sharedPreferences;
@@ -18,6 +20,20 @@ public class DataStorage {
         sharedPreferences.edit().putString(key, value).apply();
     }
 
+    public void set(Map<String, String> values) {
+        edit(values).apply();
+    }
+
+    public void commit(Map<String, String> values) {
+        edit(values).commit();
+    }
+
+    private SharedPreferences.Editor edit(Map<String, String> values) {
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (Map.Entry<String, String> entry : values.entrySet()) editor.putString(entry.getKey(), entry.getValue());
+        return editor;
+    }
+
     public boolean contains(String key) {
         return sharedPreferences.contains(key);
     }
@@ -1,23 +1,72 @@
 package sugar.free.sightparser;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Serializable;
 
 import sugar.free.sightparser.error.BolusDurationLimitExceededError;
 import sugar.free.sightparser.error.BolusAmountLimitExceededError;
+import sugar.free.sightparser.error.DisconnectedError;
 import sugar.free.sightparser.error.NotAvailableError;
 import sugar.free.sightparser.error.PumpAlreadyInThatStateError;
 import sugar.free.sightparser.error.SightError;
 
 public class Errors {
 
-    public static final Map<Short, Class<? extends SightError>> ERRORS = new HashMap<>();
+    private static final byte SERIALIZED = 0x00;
+    private static final byte PUMP_ERROR = 0x01;
+    private static final byte DISCONNECTED = 0x02;
 
-    static {
-        ERRORS.put((short) 0x6A0C, NotAvailableError.class);
-        ERRORS.put((short) 0x8117, BolusAmountLimitExceededError.class);
-        ERRORS.put((short) 0x7E17, BolusDurationLimitExceededError.class);
-        ERRORS.put((short) 0xFC0C, PumpAlreadyInThatStateError.class);
+    //The pump errors carry no state, so one instance without a stack trace is shared by all occurrences
+    private static final PumpError[] PUMP_ERRORS = {
+            new PumpError((short) 0x6A0C, new NotAvailableError()),
+            new PumpError((short) 0x8117, new BolusAmountLimitExceededError()),
+            new PumpError((short) 0x7E17, new BolusDurationLimitExceededError()),
+            new PumpError((short) 0xFC0C, new PumpAlreadyInThatStateError())
+    };
+
+    public static SightError getError(short errorCode) {
+        for (PumpError pumpError : PUMP_ERRORS) if (pumpError.code == errorCode) return pumpError.error;
+        return null;
+    }
+
+    public static short getErrorCode(Exception error) {
+        for (PumpError pumpError : PUMP_ERRORS) if (pumpError.error.getClass().isInstance(error)) return pumpError.code;
+        return 0x0000;
+    }
+
+    /**
+     * Encodes an error for the service boundary. Pump errors and disconnects become a short code,
+     * anything else is Java-serialized.
+     */
+    public static byte[] serialize(Exception error) {
+        short errorCode = getErrorCode(error);
+        if (errorCode != 0x0000) return new byte[] {PUMP_ERROR, (byte) (errorCode >> 8), (byte) errorCode};
+        if (error instanceof DisconnectedError) return new byte[] {DISCONNECTED};
+        byte[] serialized = SerializationUtils.serialize((Serializable) error);
+        byte[] bytes = new byte[serialized.length + 1];
+        bytes[0] = SERIALIZED;
+        System.arraycopy(serialized, 0, bytes, 1, serialized.length);
+        return bytes;
     }
 
+    public static Exception deserialize(byte[] bytes) {
+        switch (bytes[0]) {
+            case PUMP_ERROR: return getError((short) ((bytes[1] & 0xFF) << 8 | bytes[2] & 0xFF));
+            case DISCONNECTED: return new DisconnectedError();
+            default:
+                byte[] serialized = new byte[bytes.length - 1];
+                System.arraycopy(bytes, 1, serialized, 0, serialized.length);
+                return (Exception) SerializationUtils.deserialize(serialized);
+        }
+    }
+
+    private static class PumpError {
+        private final short code;
+        private final SightError error;
+
+        private PumpError(short code, SightError error) {
+            this.code = code;
+            this.error = error;
+            error.setStackTrace(new StackTraceElement[0]);
+        }
+    }
 }
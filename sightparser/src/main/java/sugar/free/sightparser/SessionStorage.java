@@ -0,0 +1,106 @@
+package sugar.free.sightparser;
+
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import sugar.free.sightparser.crypto.Nonce;
+
+/*
+ * Write-behind store for the per-frame session state. The sent nonce is persisted as a reservation
+ * ahead of the nonces actually used, so a crash can never lead to a nonce being sent twice.
+ */
+public class SessionStorage {
+
+    private static final long FLUSH_INTERVAL = 10000;
+    private static final int NONCE_RESERVATION = 256;
+
+    private DataStorage dataStorage;
+    private Timer flushTimer;
+
+    private int commID;
+    private Nonce nonceReservation;
+    private Nonce lastNonceReceived;
+    private boolean lastNonceReceivedChanged;
+    private boolean closed;
+    private final Map<String, String> pendingWrites = new HashMap<>();
+
+    public SessionStorage(DataStorage dataStorage) {
+        this.dataStorage = dataStorage;
+        if (dataStorage.contains("COMMID"))
+            commID = Integer.parseInt(dataStorage.get("COMMID"));
+        if (dataStorage.contains("LASTNONCESENT"))
+            nonceReservation = Nonce.fromByteArray(Hex.decode(dataStorage.get("LASTNONCESENT")));
+        else nonceReservation = new Nonce();
+        if (dataStorage.contains("LASTNONCERECEIVED"))
+            lastNonceReceived = Nonce.fromByteArray(Hex.decode(dataStorage.get("LASTNONCERECEIVED")));
+        flushTimer = new Timer(true);
+        flushTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL);
+    }
+
+    public int getCommID() {
+        return commID;
+    }
+
+    public Nonce getLastNonceSent() {
+        return new Nonce(nonceReservation);
+    }
+
+    public Nonce getLastNonceReceived() {
+        return lastNonceReceived == null ? null : new Nonce(lastNonceReceived);
+    }
+
+    public synchronized void setCommID(int commID) {
+        if (closed || this.commID == commID) return;
+        this.commID = commID;
+        pendingWrites.put("COMMID", commID + "");
+    }
+
+    public synchronized void setLastNonceReceived(Nonce lastNonceReceived) {
+        if (closed) return;
+        if (this.lastNonceReceived == null) this.lastNonceReceived = new Nonce(lastNonceReceived);
+        else this.lastNonceReceived.set(lastNonceReceived);
+        lastNonceReceivedChanged = true;
+    }
+
+    public synchronized void setLastNonceSent(Nonce lastNonceSent) {
+        if (closed || lastNonceSent.compareTo(nonceReservation) < 0) return;
+        nonceReservation.set(lastNonceSent);
+        nonceReservation.add(NONCE_RESERVATION);
+        pendingWrites.put("LASTNONCESENT", Hex.toHexString(nonceReservation.toByteArray()));
+        dataStorage.commit(takePendingWrites());
+    }
+
+    public synchronized void flush() {
+        if (closed) return;
+        if (!pendingWrites.isEmpty() || lastNonceReceivedChanged) dataStorage.set(takePendingWrites());
+    }
+
+    /**
+     * Writes what is still pending. Nothing is written afterwards, so the storage can be cleared
+     * for a new pairing once this has returned.
+     */
+    public synchronized void close() {
+        flushTimer.cancel();
+        flush();
+        closed = true;
+    }
+
+    private Map<String, String> takePendingWrites() {
+        if (lastNonceReceivedChanged) {
+            pendingWrites.put("LASTNONCERECEIVED", Hex.toHexString(lastNonceReceived.toByteArray()));
+            lastNonceReceivedChanged = false;
+        }
+        Map<String, String> writes = new HashMap<>(pendingWrites);
+        pendingWrites.clear();
+        return writes;
+    }
+}
@@ -1,10 +1,7 @@
 package sugar.free.sightparser.applayer;
 
-import android.annotation.SuppressLint;
-
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import sugar.free.sightparser.Errors;
 import sugar.free.sightparser.Message;
@@ -41,48 +38,14 @@ import sugar.free.sightparser.pipeline.ByteBuf;
 
 public abstract class AppLayerMessage extends Message implements Serializable {
 
-    private static final byte VERSION = 0x20;
-    @SuppressLint("UseSparseArrays")
-    private static Map<Byte, Map<Short, Class<? extends AppLayerMessage>>> MESSAGES = new HashMap<>();
-
-    static {
-        Map<Short, Class<? extends AppLayerMessage>> connectionMessages = new HashMap<>();
-        connectionMessages.put((short) 0xCDF3, BindMessage.class);
-        connectionMessages.put((short) 0x0BF0, ConnectMessage.class);
-        connectionMessages.put((short) 0x14F0, DisconnectMessage.class);
-        connectionMessages.put((short) 0xD2F3, ServiceChallengeMessage.class);
-        connectionMessages.put((short) 0xF7F0, ActivateServiceMessage.class);
-        MESSAGES.put(Service.CONNECTION.getServiceID(), connectionMessages);
-
-        Map<Short, Class<? extends AppLayerMessage>> statusMessages = new HashMap<>();
-        statusMessages.put((short) 0xFC00, PumpStatusMessage.class);
-        statusMessages.put((short) 0xA905, CurrentBasalMessage.class);
-        statusMessages.put((short) 0x3A03, CartridgeAmountMessage.class);
-        statusMessages.put((short) 0x2503, BatteryAmountMessage.class);
-        statusMessages.put((short) 0xB605, CurrentTBRMessage.class);
-        statusMessages.put((short) 0x6F06, ActiveBolusesMessage.class);
-        statusMessages.put((short) 0xD82E, FirmwareVersionMessage.class);
-        statusMessages.put((short) 0x4A05, WarrantyTimerMessage.class);
-        statusMessages.put((short) 0xE300, DateTimeMesssage.class);
-        MESSAGES.put(Service.STATUS.getServiceID(), statusMessages);
-
-        Map<Short, Class<? extends AppLayerMessage>> insulinControlMessages = new HashMap<>();
-        insulinControlMessages.put((short) 0x031B, BolusMessage.class);
-        insulinControlMessages.put((short) 0xE01B, CancelBolusMessage.class);
-        insulinControlMessages.put((short) 0x3918, CancelTBRMessage.class);
-        insulinControlMessages.put((short) 0xC518, SetTBRMessage.class);
-        insulinControlMessages.put((short) 0x53A4, ChangeTBRMessage.class);
-        insulinControlMessages.put((short) 0xDA18, AvailableBolusesMessage.class);
-        insulinControlMessages.put((short) 0x2618, SetPumpStatusMessage.class);
-        MESSAGES.put(Service.REMOTE_CONTROL.getServiceID(), insulinControlMessages);
-
-        Map<Short, Class<? extends AppLayerMessage>> configurationMessages = new HashMap<>();
-        configurationMessages.put((short) 0x561E, ReadConfigurationBlockMessage.class);
-        MESSAGES.put(Service.CONFIGURATION.getServiceID(), configurationMessages);
-    }
+    static final byte VERSION = 0x20;
+    private static final byte[] NO_DATA = new byte[0];
+    private static final ConcurrentHashMap<Class<?>, byte[]> TEMPLATES = new ConcurrentHashMap<>();
+
+    private transient byte[] payload;
 
     protected byte[] getData() throws Exception {
-        return new byte[0];
+        return NO_DATA;
     }
 
     public abstract Service getService();
@@ -100,8 +63,22 @@ public abstract class AppLayerMessage extends Message implements Serializable {
         return false;
     }
 
+    /**
+     * Messages without data always serialize to the same bytes, so those are encoded once per
+     * message type and shared. The returned array must not be modified.
+     */
     public byte[] serialize() throws Exception {
         byte[] data = getData();
+        if (data != NO_DATA) return serialize(data);
+        byte[] template = TEMPLATES.get(getClass());
+        if (template == null) {
+            template = serialize(data);
+            TEMPLATES.put(getClass(), template);
+        }
+        return template;
+    }
+
+    private byte[] serialize(byte[] data) {
         ByteBuf byteBuf = new ByteBuf(4 + data.length + (outCRC() ? 2 : 0));
         byteBuf.putByte(VERSION);
         byteBuf.putByte(getService().getServiceID());
@@ -111,34 +88,131 @@ public abstract class AppLayerMessage extends Message implements Serializable {
         return byteBuf.getBytes();
     }
 
+    /**
+     * The serialized form this message was parsed from, as it is handed on to clients of the SightService.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public static AppLayerMessage deserialize(byte[] payload) throws Exception {
+        AppLayerMessage message = deserialize(ByteBuf.wrap(payload));
+        message.payload = payload;
+        return message;
+    }
+
     public static AppLayerMessage deserialize(ByteBuf byteBuf) throws Exception {
         byte version = byteBuf.readByte();
         byte service = byteBuf.readByte();
         short command = byteBuf.readShort();
         short error = byteBuf.readShort();
-        byte[] data = byteBuf.readBytes();
         if (version != VERSION) throw new InvalidAppVersionError(version, VERSION);
-        if (!MESSAGES.containsKey(service)) throw new UnknownServiceError(service);
-        Class<? extends AppLayerMessage> clazz = MESSAGES.get(service).get(command);
-        if (clazz == null) throw new UnknownAppMessageError(service, command);
+        AppLayerMessage message = create(service, command);
+        decode(message, error, byteBuf);
+        return message;
+    }
+
+    /**
+     * Decodes into the given message instead of a new instance, overwriting what it held before.
+     * Meant for callers that poll the same status message over and over.
+     */
+    public static <T extends AppLayerMessage> T deserialize(byte[] payload, T message) throws Exception {
+        ByteBuf byteBuf = ByteBuf.wrap(payload);
+        byte version = byteBuf.readByte();
+        byte service = byteBuf.readByte();
+        short command = byteBuf.readShort();
+        short error = byteBuf.readShort();
+        if (version != VERSION) throw new InvalidAppVersionError(version, VERSION);
+        if (service != message.getService().getServiceID() || command != message.getCommand())
+            throw new UnknownAppMessageError(service, command);
+        decode(message, error, byteBuf);
+        ((AppLayerMessage) message).payload = payload;
+        return message;
+    }
+
+    private static void decode(AppLayerMessage message, short error, ByteBuf byteBuf) throws Exception {
         if (error != 0x0000) {
-            Class<? extends SightError> errorClass = Errors.ERRORS.get(error);
-            if (errorClass != null) throw errorClass.newInstance();
-            else throw new UnknownAppErrorCodeError(clazz, error);
+            SightError sightError = Errors.getError(error);
+            if (sightError != null) throw sightError;
+            else throw new UnknownAppErrorCodeError(message.getClass(), error);
         }
-        AppLayerMessage message = clazz.newInstance();
-        ByteBuf dataBuf = new ByteBuf(data.length);
-        dataBuf.putBytes(data);
+        ByteBuf dataBuf = byteBuf.slice(0, byteBuf.size());
+        byteBuf.shift(byteBuf.size());
         if (message.inCRC()) {
-            short crc = dataBuf.getShortLE(data.length - 2);
-            byte[] bytes = dataBuf.getBytes(data.length - 2);
-            short calculatedCRC = (short) Cryptograph.calculateCRC(bytes);
+            short crc = dataBuf.getShortLE(dataBuf.size() - 2);
+            dataBuf = dataBuf.slice(0, dataBuf.size() - 2);
+            short calculatedCRC = (short) Cryptograph.calculateCRC(dataBuf);
             if (crc != calculatedCRC) throw new InvalidAppCRCError(crc, calculatedCRC);
-            dataBuf = new ByteBuf(bytes.length);
-            dataBuf.putBytes(bytes);
         }
         message.parse(dataBuf);
+    }
+
+    private static AppLayerMessage create(byte service, short command) throws SightError {
+        AppLayerMessage message;
+        switch (service) {
+            case Service.ID.CONNECTION:
+                message = createConnectionMessage(command);
+                break;
+            case Service.ID.STATUS:
+                message = createStatusMessage(command);
+                break;
+            case Service.ID.REMOTE_CONTROL:
+                message = createRemoteControlMessage(command);
+                break;
+            case Service.ID.CONFIGURATION:
+                message = createConfigurationMessage(command);
+                break;
+            default:
+                throw new UnknownServiceError(service);
+        }
+        if (message == null) throw new UnknownAppMessageError(service, command);
         return message;
     }
 
+    private static AppLayerMessage createConnectionMessage(short command) {
+        switch (command) {
+            case (short) 0xCDF3: return new BindMessage();
+            case (short) 0x0BF0: return new ConnectMessage();
+            case (short) 0x14F0: return new DisconnectMessage();
+            case (short) 0xD2F3: return new ServiceChallengeMessage();
+            case (short) 0xF7F0: return new ActivateServiceMessage();
+            default: return null;
+        }
+    }
+
+    private static AppLayerMessage createStatusMessage(short command) {
+        switch (command) {
+            case (short) 0xFC00: return new PumpStatusMessage();
+            case (short) 0xA905: return new CurrentBasalMessage();
+            case (short) 0x3A03: return new CartridgeAmountMessage();
+            case (short) 0x2503: return new BatteryAmountMessage();
+            case (short) 0xB605: return new CurrentTBRMessage();
+            case (short) 0x6F06: return new ActiveBolusesMessage();
+            case (short) 0xD82E: return new FirmwareVersionMessage();
+            case (short) 0x4A05: return new WarrantyTimerMessage();
+            case (short) 0xE300: return new DateTimeMesssage();
+            default: return null;
+        }
+    }
+
+    private static AppLayerMessage createRemoteControlMessage(short command) {
+        switch (command) {
+            case (short) 0x031B: return new BolusMessage();
+            case (short) 0xE01B: return new CancelBolusMessage();
+            case (short) 0x3918: return new CancelTBRMessage();
+            case (short) 0xC518: return new SetTBRMessage();
+            case (short) 0x53A4: return new ChangeTBRMessage();
+            case (short) 0xDA18: return new AvailableBolusesMessage();
+            case (short) 0x2618: return new SetPumpStatusMessage();
+            default: return null;
+        }
+    }
+
+    private static AppLayerMessage createConfigurationMessage(short command) {
+        switch (command) {
+            case (short) 0x561E: return new ReadConfigurationBlockMessage();
+            default: return null;
+        }
+    }
+
 }
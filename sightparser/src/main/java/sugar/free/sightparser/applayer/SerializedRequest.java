@@ -0,0 +1,42 @@
+package sugar.free.sightparser.applayer;
+
+import sugar.free.sightparser.error.InvalidAppVersionError;
+import sugar.free.sightparser.error.UnknownServiceError;
+import sugar.free.sightparser.pipeline.ByteBuf;
+
+/**
+ * A request that arrives already serialized from a client of the SightService. It is passed to
+ * the pump as is, without reconstructing the original message class.
+ */
+public class SerializedRequest extends AppLayerMessage {
+
+    private byte[] serialized;
+    private Service service;
+    private short command;
+
+    public SerializedRequest(byte[] serialized) throws Exception {
+        ByteBuf byteBuf = ByteBuf.wrap(serialized);
+        byte version = byteBuf.readByte();
+        byte serviceID = byteBuf.readByte();
+        if (version != VERSION) throw new InvalidAppVersionError(version, VERSION);
+        service = Service.getService(serviceID);
+        if (service == null) throw new UnknownServiceError(serviceID);
+        command = byteBuf.readShort();
+        this.serialized = serialized;
+    }
+
+    @Override
+    public byte[] serialize() {
+        return serialized;
+    }
+
+    @Override
+    public Service getService() {
+        return service;
+    }
+
+    @Override
+    public short getCommand() {
+        return command;
+    }
+}
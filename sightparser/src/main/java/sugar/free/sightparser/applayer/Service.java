@@ -2,12 +2,27 @@ package sugar.free.sightparser.applayer;
 
 public enum  Service {
 
-    CONNECTION((byte) 0x00, (short) 0, null),
-    STATUS((byte) 0x0F, (short) 0x0100, null),
-    STATUSPARAM((byte) 0x33, (short) 0x0200, null),
-    PUMP_DATA((byte) 0x3C, (short) 0x0200, null),
-    CONFIGURATION((byte) 0x55, (short) 0x0200, "u+5Fhz6Gw4j1Kkas"),
-    REMOTE_CONTROL((byte) 0x66, (short) 0x0100, null);
+    CONNECTION(ID.CONNECTION, (short) 0, null),
+    STATUS(ID.STATUS, (short) 0x0100, null),
+    STATUSPARAM(ID.STATUSPARAM, (short) 0x0200, null),
+    PUMP_DATA(ID.PUMP_DATA, (short) 0x0200, null),
+    CONFIGURATION(ID.CONFIGURATION, (short) 0x0200, "u+5Fhz6Gw4j1Kkas"),
+    REMOTE_CONTROL(ID.REMOTE_CONTROL, (short) 0x0100, null);
+
+    /**
+     * The service IDs as constants, so they can be switched on.
+     */
+    public static final class ID {
+        public static final byte CONNECTION = 0x00;
+        public static final byte STATUS = 0x0F;
+        public static final byte STATUSPARAM = 0x33;
+        public static final byte PUMP_DATA = 0x3C;
+        public static final byte CONFIGURATION = 0x55;
+        public static final byte REMOTE_CONTROL = 0x66;
+
+        private ID() {
+        }
+    }
 
     private byte serviceID;
     private short serviceVersion;
@@ -30,4 +45,9 @@ public enum  Service {
     public String getServicePassword() {
         return servicePassword;
     }
+
+    public static Service getService(byte serviceID) {
+        for (Service service : values()) if (service.serviceID == serviceID) return service;
+        return null;
+    }
 }
@@ -20,13 +20,17 @@ public class ActiveBolus implements Serializable {
 
     public static ActiveBolus parse(ByteBuf byteBuf) {
         ActiveBolus activeBolus = new ActiveBolus();
-        activeBolus.bolusID = byteBuf.readShortLE();
-        activeBolus.bolusType = BolusType.getBolusType(byteBuf.readShort());
+        activeBolus.read(byteBuf);
+        return activeBolus;
+    }
+
+    void read(ByteBuf byteBuf) {
+        bolusID = byteBuf.readShortLE();
+        bolusType = BolusType.getBolusType(byteBuf.readShort());
         byteBuf.shift(2);
         byteBuf.shift(2);
-        activeBolus.initialAmount = ((float) byteBuf.readShortLE()) / 100F;
-        activeBolus.leftoverAmount = ((float) byteBuf.readShortLE()) / 100F;
-        activeBolus.duration = byteBuf.readShortLE();
-        return activeBolus;
+        initialAmount = ((float) byteBuf.readShortLE()) / 100F;
+        leftoverAmount = ((float) byteBuf.readShortLE()) / 100F;
+        duration = byteBuf.readShortLE();
     }
 }
@@ -16,6 +16,7 @@ public class ActiveBolusesMessage extends AppLayerMessage {
     private ActiveBolus bolus2;
     @Getter
     private ActiveBolus bolus3;
+    private transient ActiveBolus[] slots;
 
     @Override
     public Service getService() {
@@ -34,11 +35,17 @@ public class ActiveBolusesMessage extends AppLayerMessage {
 
     @Override
     protected void parse(ByteBuf byteBuf) throws Exception {
-        bolus1 = ActiveBolus.parse(byteBuf);
-        bolus2 = ActiveBolus.parse(byteBuf);
-        bolus3 = ActiveBolus.parse(byteBuf);
-        if (bolus1.getLeftoverAmount() == 0) bolus1 = null;
-        if (bolus2.getLeftoverAmount() == 0) bolus2 = null;
-        if (bolus3.getLeftoverAmount() == 0) bolus3 = null;
+        bolus1 = readBolus(byteBuf, 0);
+        bolus2 = readBolus(byteBuf, 1);
+        bolus3 = readBolus(byteBuf, 2);
+    }
+
+    //Keeps the bolus objects of earlier parses, so decoding into the same message again allocates none
+    private ActiveBolus readBolus(ByteBuf byteBuf, int slot) {
+        if (slots == null) slots = new ActiveBolus[3];
+        if (slots[slot] == null) slots[slot] = new ActiveBolus();
+        ActiveBolus activeBolus = slots[slot];
+        activeBolus.read(byteBuf);
+        return activeBolus.getLeftoverAmount() == 0 ? null : activeBolus;
     }
 }
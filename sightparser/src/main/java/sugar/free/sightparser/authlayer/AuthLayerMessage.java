@@ -1,17 +1,12 @@
 package sugar.free.sightparser.authlayer;
 
-import android.annotation.SuppressLint;
-
 import org.spongycastle.util.encoders.Hex;
 
-import java.math.BigInteger;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-
 import lombok.Getter;
 import sugar.free.sightparser.Message;
+import sugar.free.sightparser.crypto.CCMCipher;
 import sugar.free.sightparser.crypto.Cryptograph;
+import sugar.free.sightparser.crypto.Nonce;
 import sugar.free.sightparser.error.InvalidAuthCRCError;
 import sugar.free.sightparser.error.InvalidAuthVersionError;
 import sugar.free.sightparser.error.InvalidNonceError;
@@ -25,26 +20,8 @@ public abstract class AuthLayerMessage extends Message {
     static final byte[] MAGIC_HEADER = Hex.decode("88CCEEFF");
     static final byte VERSION = 0x20;
 
-    @SuppressLint("UseSparseArrays")
-    private static final Map<Byte, Class<? extends AuthLayerMessage>> MESSAGES = new HashMap<>();
-
-    static {
-        MESSAGES.put((byte) 0x09, ConnectionRequest.class);
-        MESSAGES.put((byte) 0x0A, ConnectionResponse.class);
-        MESSAGES.put((byte) 0x0C, KeyRequest.class);
-        MESSAGES.put((byte) 0x11, KeyResponse.class);
-        MESSAGES.put((byte) 0x12, VerifyDisplayRequest.class);
-        MESSAGES.put((byte) 0x14, VerifyDisplayResponse.class);
-        MESSAGES.put((byte) 0x0E, VerifyConfirmRequest.class);
-        MESSAGES.put((byte) 0x1E, VerifyConfirmResponse.class);
-        MESSAGES.put((byte) 0x17, SynRequest.class);
-        MESSAGES.put((byte) 0x18, SynAckResponse.class);
-        MESSAGES.put((byte) 0x06, ErrorMessage.class);
-        MESSAGES.put((byte) 0x03, DataMessage.class);
-    }
-
     @Getter
-    private BigInteger nonce;
+    private Nonce nonce;
     @Getter
     private int commID;
 
@@ -54,11 +31,9 @@ public abstract class AuthLayerMessage extends Message {
         return new byte[0];
     }
 
-    public ByteBuf serialize(BigInteger nonce, int commID, byte[] key) {
+    public ByteBuf serialize(Nonce nonce, int commID, CCMCipher cipher) {
         byte[] data = getData();
-        byte[] nonceBytes = processNonce(nonce);
-        byte[] dataEncrypted = Cryptograph.encryptDataCTR(data, key, nonceBytes);
-        short dataLength = (short) dataEncrypted.length;
+        short dataLength = (short) data.length;
         short length = (short) (29 + dataLength);
         ByteBuf byteBuf = new ByteBuf(length + 8);
         byteBuf.putBytes(MAGIC_HEADER);
@@ -68,68 +43,71 @@ public abstract class AuthLayerMessage extends Message {
         byteBuf.putByte(getCommand());
         byteBuf.putShortLE(dataLength);
         byteBuf.putIntLE(commID);
-        byteBuf.putBytes(nonceBytes);
-        byteBuf.putBytes(dataEncrypted);
-        byteBuf.putBytes(Cryptograph.produceCCMTag(byteBuf.getBytes(16, 13), data, byteBuf.getBytes(8, 21), key));
+        nonce.writeLE(byteBuf);
+        byteBuf.putBytes(data);
+        Cryptograph.encryptCCM(byteBuf.slice(16, 13), byteBuf.slice(8, 21), byteBuf.slice(29, dataLength), cipher, byteBuf);
         return byteBuf;
     }
 
-    public static AuthLayerMessage deserialize(ByteBuf data, BigInteger lastNonce, byte[] key) throws IllegalAccessException, InstantiationException, SightError {
-        data.shift(4); //Magic header
-        int packetLength = data.readShortLE();
-        data.shift(2); //Packet length XOR
-        byte[] crcContent = data.getBytes(packetLength - 10);
-        byte[] header = data.getBytes(21);
-        byte version = data.readByte();
-        byte command = data.readByte();
-        Class clazz = MESSAGES.get(command);
-        if (clazz == null) throw new UnknownAuthMessageError(command);
-        int dataLength = data.readShortLE();
-        int commID = data.readIntLE();
-        byte[] nonceTrailer = data.getBytes(13);
-        byte[] nonce = data.readBytesLE(13);
-        byte[] payload = data.readBytes(dataLength);
-        byte[] trailer = data.readBytes(8);
-        boolean crcPacket = CRCAuthLayerMessage.class.isAssignableFrom(clazz);
-        BigInteger nonceInt = new BigInteger(nonce);
+    public static AuthLayerMessage deserialize(ByteBuf data, Nonce lastNonce, CCMCipher cipher) throws SightError {
+        int packetLength = data.getShortLE(4);
+        ByteBuf crcContent = data.slice(8, packetLength - 10);
+        ByteBuf header = data.slice(8, 21);
+        byte version = data.getByte(8);
+        byte command = data.getByte(9);
+        int dataLength = data.getShortLE(10);
+        int commID = data.getIntLE(12);
+        ByteBuf nonceTrailer = data.slice(16, 13);
+        Nonce nonce = Nonce.readLE(data, 16);
+        ByteBuf payload = data.slice(29, dataLength);
+        ByteBuf trailer = data.slice(29 + dataLength, 8);
+        //The slices stay valid after the shift as long as nothing is written into data meanwhile
+        data.shift(37 + dataLength);
+        AuthLayerMessage message = create(command);
+        if (message == null) throw new UnknownAuthMessageError(command);
+        boolean crcPacket = message instanceof CRCAuthLayerMessage;
         if (version  != VERSION) {
             throw new InvalidAuthVersionError(version, VERSION);
-        } else if (lastNonce != null && lastNonce.equals(BigInteger.ZERO) && nonceInt.compareTo(lastNonce) != 1) {
-            throw new InvalidNonceError(nonce, processNonce(lastNonce.add(BigInteger.ONE)));
+        } else if (lastNonce != null && lastNonce.isZero() && nonce.compareTo(lastNonce) <= 0) {
+            Nonce expected = new Nonce(lastNonce);
+            expected.increment();
+            throw new InvalidNonceError(nonce.toByteArray(), expected.toByteArray());
         } else {
             if (crcPacket) {
-                byte[] crcBytes = new byte[2];
-                byte[] rawData = new byte[dataLength - 2];
-                System.arraycopy(payload, dataLength - 2, crcBytes, 0, 2);
-                System.arraycopy(payload, 0, rawData, 0, dataLength - 2);
-                payload = rawData;
-                short crc = (short) (crcBytes[0] & 0xFF | crcBytes[1] << 8);
+                short crc = payload.getShortLE(dataLength - 2);
+                payload = payload.slice(0, dataLength - 2);
                 short calculatedCRC = (short) Cryptograph.calculateCRC(crcContent);
                 if (!(crc == calculatedCRC)) throw new InvalidAuthCRCError(crc, calculatedCRC);
             } else {
-                payload = Cryptograph.encryptDataCTR(payload, key, nonceTrailer);
-                byte[] calculatedTrailer = Cryptograph.produceCCMTag(nonceTrailer, payload, header, key);
-                if (!Arrays.equals(trailer, calculatedTrailer)) throw new InvalidTrailerError(trailer, calculatedTrailer);
+                if (!Cryptograph.decryptAndVerifyCCM(nonceTrailer, header, payload, trailer, cipher))
+                    throw new InvalidTrailerError(trailer.getBytes());
             }
-            AuthLayerMessage message = (AuthLayerMessage) clazz.newInstance();
-            message.nonce = nonceInt;
+            message.nonce = nonce;
             message.commID = commID;
-            ByteBuf byteBuf = new ByteBuf(payload.length);
-            byteBuf.putBytes(payload);
-            message.parse(byteBuf);
+            message.parse(payload);
             return message;
         }
     }
 
-    protected void parse(ByteBuf byteBuf) {
-
+    private static AuthLayerMessage create(byte command) {
+        switch (command) {
+            case 0x09: return new ConnectionRequest();
+            case 0x0A: return new ConnectionResponse();
+            case 0x0C: return new KeyRequest();
+            case 0x11: return new KeyResponse();
+            case 0x12: return new VerifyDisplayRequest();
+            case 0x14: return new VerifyDisplayResponse();
+            case 0x0E: return new VerifyConfirmRequest();
+            case 0x1E: return new VerifyConfirmResponse();
+            case 0x17: return new SynRequest();
+            case 0x18: return new SynAckResponse();
+            case 0x06: return new ErrorMessage();
+            case 0x03: return new DataMessage();
+            default: return null;
+        }
     }
 
-    static byte[] processNonce(BigInteger nonce) {
-        byte[] bytes = nonce.toByteArray();
-        ByteBuf byteBuf = new ByteBuf(13);
-        byteBuf.putBytesLE(bytes);
-        byteBuf.putBytes((byte) 0x00, 13 - bytes.length);
-        return byteBuf.getBytes();
+    protected void parse(ByteBuf byteBuf) {
+
     }
 }
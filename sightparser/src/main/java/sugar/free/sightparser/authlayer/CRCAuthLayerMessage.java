@@ -1,14 +1,14 @@
 package sugar.free.sightparser.authlayer;
 
-import java.math.BigInteger;
-
+import sugar.free.sightparser.crypto.CCMCipher;
 import sugar.free.sightparser.crypto.Cryptograph;
+import sugar.free.sightparser.crypto.Nonce;
 import sugar.free.sightparser.pipeline.ByteBuf;
 
 public abstract class CRCAuthLayerMessage extends AuthLayerMessage {
 
     @Override
-    public ByteBuf serialize(BigInteger nonce, int commID, byte[] key) {
+    public ByteBuf serialize(Nonce nonce, int commID, CCMCipher cipher) {
         byte[] data = getData();
         short dataLength = (short) (data.length + 2);
         short length = (short) (29 + dataLength);
@@ -20,9 +20,9 @@ public abstract class CRCAuthLayerMessage extends AuthLayerMessage {
         byteBuf.putByte(getCommand());
         byteBuf.putShortLE(dataLength);
         byteBuf.putIntLE(commID);
-        byteBuf.putBytes(processNonce(nonce));
+        nonce.writeLE(byteBuf);
         byteBuf.putBytes(data);
-        byteBuf.putShortLE((short) Cryptograph.calculateCRC(byteBuf.getBytes(8, length - 10)));
+        byteBuf.putShortLE((short) Cryptograph.calculateCRC(byteBuf.slice(8, length - 10)));
         byteBuf.putBytes((byte) 0x00, 8);
         return byteBuf;
     }
@@ -0,0 +1,18 @@
+package sugar.free.sightparser.crypto;
+
+import org.spongycastle.crypto.BlockCipher;
+
+/*
+ * Keyed block cipher plus the scratch blocks CCM needs per frame. Like the engine itself it must
+ * only be used by one thread at a time, which holds for both directions of a connection.
+ */
+public final class CCMCipher {
+
+    final BlockCipher engine;
+    final byte[] block = new byte[16];
+    final byte[] mac = new byte[16];
+
+    CCMCipher(BlockCipher engine) {
+        this.engine = engine;
+    }
+}
@@ -41,4 +41,19 @@ public class CRC {
         0xf78f, 0xe606, 0xd49d, 0xc514, 0xb1ab, 0xa022, 0x92b9, 0x8330,
         0x7bc7, 0x6a4e, 0x58d5, 0x495c, 0x3de3, 0x2c6a, 0x1ef1, 0x0f78
     };
+
+    /*
+     * Slicing-by-8 tables: slices[k][b] is the CRC contribution of byte b followed by k zero bytes
+     */
+    protected static final int[][] slices = new int[8][256];
+
+    static {
+        slices[0] = table;
+        for (int k = 1; k < 8; k++) {
+            for (int b = 0; b < 256; b++) {
+                int crc = slices[k - 1][b];
+                slices[k][b] = (crc >>> 8) ^ table[crc & 0xff];
+            }
+        }
+    }
 }
\ No newline at end of file
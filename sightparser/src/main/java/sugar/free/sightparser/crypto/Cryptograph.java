@@ -1,6 +1,7 @@
 package sugar.free.sightparser.crypto;
 
 import org.spongycastle.crypto.AsymmetricCipherKeyPair;
+import org.spongycastle.crypto.BlockCipher;
 import org.spongycastle.crypto.Digest;
 import org.spongycastle.crypto.InvalidCipherTextException;
 import org.spongycastle.crypto.digests.MD5Digest;
@@ -10,10 +11,8 @@ import org.spongycastle.crypto.engines.RSAEngine;
 import org.spongycastle.crypto.engines.TwofishEngine;
 import org.spongycastle.crypto.generators.RSAKeyPairGenerator;
 import org.spongycastle.crypto.macs.HMac;
-import org.spongycastle.crypto.modes.CBCBlockCipher;
 import org.spongycastle.crypto.params.AsymmetricKeyParameter;
 import org.spongycastle.crypto.params.KeyParameter;
-import org.spongycastle.crypto.params.ParametersWithIV;
 import org.spongycastle.crypto.params.RSAKeyGenerationParameters;
 import org.spongycastle.crypto.params.RSAKeyParameters;
 import org.spongycastle.crypto.params.RSAPrivateCrtKeyParameters;
@@ -117,78 +116,105 @@ public class Cryptograph {
         return combined;
     }
 
-    private static byte[] produceCCMPrimitive(byte headerByte, byte[] nonce, short number) {
-        ByteBuf byteBuf = new ByteBuf(16);
-        byteBuf.putByte(headerByte);
-        byteBuf.putBytes(nonce);
-        byteBuf.putShort(number);
-        return byteBuf.getBytes();
+    private static void produceCCMPrimitive(byte[] block, byte headerByte, ByteBuf nonce, short number) {
+        block[0] = headerByte;
+        System.arraycopy(nonce.array(), nonce.arrayOffset(), block, 1, 13);
+        block[14] = (byte) (number >> 8);
+        block[15] = (byte) number;
     }
 
-    private static byte[] produceIV(byte[] nonce, short payloadSize) {
-        return produceCCMPrimitive((byte) 0x59, nonce, payloadSize);
+    private static void produceIV(byte[] block, ByteBuf nonce, short payloadSize) {
+        produceCCMPrimitive(block, (byte) 0x59, nonce, payloadSize);
     }
 
-    private static byte[] produceCTRBlock(byte[] nonce, short counter) {
-        return produceCCMPrimitive((byte) 0x01, nonce, counter);
+    private static void produceCTRBlock(byte[] block, ByteBuf nonce, short counter) {
+        produceCCMPrimitive(block, (byte) 0x01, nonce, counter);
     }
 
-    private static byte[] blockCipherZeroPad(byte[] input) {
-        int modulus = input.length % 16;
-        if (modulus == 0) return input;
-        byte[] append = new byte[16 - modulus];
-        for (int i = 0; i < 16 - modulus; i++) {
-            append[i] = 0x00;
-        }
-        return combine(input, append);
-    }
-
-    public static byte[] encryptDataCTR(byte[] data, byte[] key, byte[] nonce) {
-        byte[] padded = blockCipherZeroPad(data);
-        int length = padded.length >> 4;
-        byte[] result = new byte[length * 16];
+    public static CCMCipher createCipher(byte[] key) {
         TwofishEngine engine = new TwofishEngine();
         engine.init(true, new KeyParameter(key));
+        return new CCMCipher(engine);
+    }
+
+    private static int updateCBCMAC(BlockCipher engine, byte[] mac, int position, byte[] array, int offset, int length) {
         for (int i = 0; i < length; i++) {
-            engine.processBlock(produceCTRBlock(nonce, (short) (i + 1)), 0, result, i * 16);
+            mac[position++] ^= array[offset + i];
+            if (position == 16) {
+                engine.processBlock(mac, 0, mac, 0);
+                position = 0;
+            }
+        }
+        return position;
+    }
+
+    public static void encryptCCM(ByteBuf nonce, ByteBuf header, ByteBuf payload, CCMCipher cipher, ByteBuf trailer) {
+        processCCM(nonce, header, payload, cipher, true);
+        trailer.putBytes(cipher.mac, 8);
+    }
+
+    public static boolean decryptAndVerifyCCM(ByteBuf nonce, ByteBuf header, ByteBuf payload, ByteBuf trailer, CCMCipher cipher) {
+        processCCM(nonce, header, payload, cipher, false);
+        return constantTimeEquals(cipher.mac, trailer.array(), trailer.arrayOffset(), 8);
+    }
+
+    private static boolean constantTimeEquals(byte[] expected, byte[] array, int offset, int length) {
+        int difference = 0;
+        for (int i = 0; i < length; i++) difference |= expected[i] ^ array[offset + i];
+        return difference == 0;
+    }
+
+    private static void processCCM(ByteBuf nonce, ByteBuf header, ByteBuf payload, CCMCipher cipher, boolean encrypt) {
+        BlockCipher engine = cipher.engine;
+        byte[] block = cipher.block;
+        byte[] mac = cipher.mac;
+        produceIV(block, nonce, (short) payload.size());
+        engine.processBlock(block, 0, mac, 0);
+        mac[0] ^= (byte) (header.size() >> 8);
+        mac[1] ^= (byte) header.size();
+        int position = updateCBCMAC(engine, mac, 2, header.array(), header.arrayOffset(), header.size());
+        if (position != 0) engine.processBlock(mac, 0, mac, 0);
+        byte[] array = payload.array();
+        int offset = payload.arrayOffset();
+        int length = payload.size();
+        for (int i = 0; i < length; i += 16) {
+            produceCTRBlock(block, nonce, (short) ((i >> 4) + 1));
+            engine.processBlock(block, 0, block, 0);
+            int blockLength = Math.min(16, length - i);
+            for (int j = 0; j < blockLength; j++) {
+                int index = offset + i + j;
+                mac[j] ^= encrypt ? array[index] : (byte) (array[index] ^ block[j]);
+                array[index] ^= block[j];
+            }
+            engine.processBlock(mac, 0, mac, 0);
         }
-        byte[] xor = byteArrayXOR(padded, result);
-        byte[] copy = new byte[Math.min(data.length, xor.length)];
-        System.arraycopy(xor, 0, copy, 0, copy.length);
-        return copy;
+        produceCTRBlock(block, nonce, (short) 0);
+        engine.processBlock(block, 0, block, 0);
+        for (int i = 0; i < 8; i++) mac[i] ^= block[i];
     }
 
-    private static byte[] processHeader(byte[] header) {
-        ByteBuf byteBuf;
-        byteBuf = new ByteBuf(2 + header.length);
-        byteBuf.putShort((short) header.length);
-        byteBuf.putBytes(header);
-        return byteBuf.getBytes();
+    public static int calculateCRC(byte[] bytes) {
+        return calculateCRC(bytes, 0, bytes.length);
     }
 
-    public static byte[] produceCCMTag(byte[] nonce, byte[] payload, byte[] header, byte[] key) {
-        TwofishEngine engine = new TwofishEngine();
-        engine.init(true, new KeyParameter(key));
-        byte[] initializationVector = new byte[engine.getBlockSize()];
-        engine.processBlock(produceIV(nonce, (short) payload.length), 0, initializationVector, 0);
-        CBCBlockCipher cbc = new CBCBlockCipher(new TwofishEngine());
-        cbc.init(true, new ParametersWithIV(new KeyParameter(key), initializationVector));
-        byte[] processedHeader = blockCipherZeroPad(processHeader(header));
-        byte[] processedPayload = blockCipherZeroPad(payload);
-        byte[] combine = combine(processedHeader, blockCipherZeroPad(processedPayload));
-        byte[] result = new byte[combine.length];
-        for (int i = 0; i < combine.length / 16; i++) cbc.processBlock(combine, i * 16, result, i * 16);
-        byte[] result2 = new byte[8];
-        System.arraycopy(result, result.length - 16, result2, 0, 8);
-        byte[] ctr = new byte[engine.getBlockSize()];
-        engine.processBlock(produceCTRBlock(nonce, (short) 0), 0, ctr, 0);
-        return byteArrayXOR(result2, ctr);
+    public static int calculateCRC(ByteBuf byteBuf) {
+        return calculateCRC(byteBuf.array(), byteBuf.arrayOffset(), byteBuf.size());
     }
 
-    public static int calculateCRC(byte[] bytes) {
+    public static int calculateCRC(byte[] bytes, int offset, int length) {
+        int[][] slices = CRC.slices;
         int crc = 0xffff;
-        for (byte b : bytes) {
-            crc = (crc >>> 8) ^ CRC.table[(crc ^ b) & 0xff];
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            crc ^= (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8;
+            crc = slices[7][crc & 0xff] ^ slices[6][crc >>> 8]
+                    ^ slices[5][bytes[i + 2] & 0xff] ^ slices[4][bytes[i + 3] & 0xff]
+                    ^ slices[3][bytes[i + 4] & 0xff] ^ slices[2][bytes[i + 5] & 0xff]
+                    ^ slices[1][bytes[i + 6] & 0xff] ^ slices[0][bytes[i + 7] & 0xff];
+        }
+        for (; i < end; i++) {
+            crc = (crc >>> 8) ^ CRC.table[(crc ^ bytes[i]) & 0xff];
         }
         return crc;
     }
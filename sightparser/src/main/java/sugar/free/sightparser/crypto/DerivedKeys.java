@@ -1,14 +1,34 @@
 package sugar.free.sightparser.crypto;
 
 import lombok.Getter;
-import lombok.Setter;
 
 public class DerivedKeys {
 
     @Getter
-    @Setter
     byte[] incomingKey;
     @Getter
-    @Setter
     byte[] outgoingKey;
+
+    private CCMCipher incomingCipher;
+    private CCMCipher outgoingCipher;
+
+    public void setIncomingKey(byte[] incomingKey) {
+        this.incomingKey = incomingKey;
+        incomingCipher = null;
+    }
+
+    public void setOutgoingKey(byte[] outgoingKey) {
+        this.outgoingKey = outgoingKey;
+        outgoingCipher = null;
+    }
+
+    public CCMCipher getIncomingCipher() {
+        if (incomingCipher == null) incomingCipher = Cryptograph.createCipher(incomingKey);
+        return incomingCipher;
+    }
+
+    public CCMCipher getOutgoingCipher() {
+        if (outgoingCipher == null) outgoingCipher = Cryptograph.createCipher(outgoingKey);
+        return outgoingCipher;
+    }
 }
@@ -0,0 +1,88 @@
+package sugar.free.sightparser.crypto;
+
+import sugar.free.sightparser.pipeline.ByteBuf;
+
+/*
+ * 104 bit little endian counter as used in the auth layer, split into the lower 64 and upper 40 bits
+ */
+public final class Nonce implements Comparable<Nonce> {
+
+    public static final int LENGTH = 13;
+    private static final long HIGH_MASK = 0xFFFFFFFFFFL;
+
+    private long low;
+    private long high;
+
+    public Nonce() {
+    }
+
+    public Nonce(Nonce nonce) {
+        set(nonce);
+    }
+
+    public void set(Nonce nonce) {
+        low = nonce.low;
+        high = nonce.high;
+    }
+
+    public void increment() {
+        if (++low == 0) high = (high + 1) & HIGH_MASK;
+    }
+
+    public void add(long value) {
+        long sum = low + value;
+        if (sum + Long.MIN_VALUE < low + Long.MIN_VALUE) high = (high + 1) & HIGH_MASK;
+        low = sum;
+    }
+
+    public boolean isZero() {
+        return low == 0 && high == 0;
+    }
+
+    public void writeLE(ByteBuf byteBuf) {
+        byteBuf.putLongLE(low);
+        for (int i = 0; i < 5; i++) byteBuf.putByte((byte) (high >>> (i * 8)));
+    }
+
+    public static Nonce readLE(ByteBuf byteBuf, int position) {
+        Nonce nonce = new Nonce();
+        nonce.low = byteBuf.getLongLE(position);
+        for (int i = 4; i >= 0; i--) nonce.high = nonce.high << 8 | byteBuf.getByte(position + 8 + i) & 0xFF;
+        return nonce;
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[LENGTH];
+        for (int i = 0; i < 8; i++) bytes[LENGTH - 1 - i] = (byte) (low >>> (i * 8));
+        for (int i = 0; i < 5; i++) bytes[4 - i] = (byte) (high >>> (i * 8));
+        return bytes;
+    }
+
+    public static Nonce fromByteArray(byte[] bytes) {
+        Nonce nonce = new Nonce();
+        for (int i = Math.max(0, bytes.length - LENGTH); i < bytes.length; i++) {
+            nonce.high = (nonce.high << 8 | nonce.low >>> 56) & HIGH_MASK;
+            nonce.low = nonce.low << 8 | bytes[i] & 0xFF;
+        }
+        return nonce;
+    }
+
+    @Override
+    public int compareTo(Nonce nonce) {
+        if (high != nonce.high) return high < nonce.high ? -1 : 1;
+        if (low == nonce.low) return 0;
+        return low + Long.MIN_VALUE < nonce.low + Long.MIN_VALUE ? -1 : 1;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof Nonce)) return false;
+        Nonce nonce = (Nonce) object;
+        return low == nonce.low && high == nonce.high;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (low ^ low >>> 32 ^ high);
+    }
+}
@@ -1,4 +1,9 @@
 package sugar.free.sightparser.error;
 
 public class CancelledException extends Exception {
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return SightError.isCaptureStackTraces() ? super.fillInStackTrace() : this;
+    }
 }
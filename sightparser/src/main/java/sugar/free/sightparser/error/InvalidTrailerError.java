@@ -8,16 +8,13 @@ public class InvalidTrailerError extends SightError {
 
     @Getter
     private byte[] received;
-    @Getter
-    private byte[] calculated;
 
-    public InvalidTrailerError(byte[] received, byte[] calculated) {
+    public InvalidTrailerError(byte[] received) {
         this.received = received;
-        this.calculated = calculated;
     }
 
     @Override
     public String getMessage() {
-        return "Received: " + Hex.toHexString(received) + " Expected: " + Hex.toHexString(calculated);
+        return "Received: " + Hex.toHexString(received);
     }
 }
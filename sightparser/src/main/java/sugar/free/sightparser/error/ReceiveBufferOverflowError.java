@@ -0,0 +1,21 @@
+package sugar.free.sightparser.error;
+
+import lombok.Getter;
+
+public class ReceiveBufferOverflowError extends SightError {
+
+    @Getter
+    private int received;
+    @Getter
+    private int writable;
+
+    public ReceiveBufferOverflowError(int received, int writable) {
+        this.received = received;
+        this.writable = writable;
+    }
+
+    @Override
+    public String getMessage() {
+        return "Received: " + received + " Writable: " + writable;
+    }
+}
@@ -0,0 +1,4 @@
+package sugar.free.sightparser.error;
+
+public class ResponseTimeoutError extends SightError {
+}
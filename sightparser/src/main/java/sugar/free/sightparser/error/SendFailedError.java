@@ -0,0 +1,19 @@
+package sugar.free.sightparser.error;
+
+import lombok.Getter;
+
+/**
+ * Raised by the pipeline when a handler fails while a message is being sent, so the failure can
+ * be traced back to the message (and the request) that caused it. The cause is the handler's
+ * exception.
+ */
+public class SendFailedError extends SightError {
+
+    @Getter
+    private transient Object failedMessage;
+
+    public SendFailedError(Object failedMessage, Exception cause) {
+        this.failedMessage = failedMessage;
+        initCause(cause);
+    }
+}
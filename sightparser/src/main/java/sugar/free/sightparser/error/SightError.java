@@ -1,5 +1,26 @@
 package sugar.free.sightparser.error;
 
+import sugar.free.sightparser.BuildConfig;
+
 public abstract class SightError extends Exception {
 
+    private static volatile boolean captureStackTraces = BuildConfig.CAPTURE_STACK_TRACES;
+
+    /**
+     * Protocol errors are routine and end up as error codes on the other side of the service
+     * boundary, so their stack traces can be skipped to make throwing them cheap. Release builds
+     * skip them by default, debug builds keep them.
+     */
+    public static void setCaptureStackTraces(boolean captureStackTraces) {
+        SightError.captureStackTraces = captureStackTraces;
+    }
+
+    static boolean isCaptureStackTraces() {
+        return captureStackTraces;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return captureStackTraces ? super.fillInStackTrace() : this;
+    }
 }
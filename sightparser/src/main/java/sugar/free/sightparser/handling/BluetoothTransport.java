@@ -0,0 +1,46 @@
+package sugar.free.sightparser.handling;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import sugar.free.sightparser.pipeline.Transport;
+
+public class BluetoothTransport implements Transport {
+
+    private static final UUID SERIAL_PORT_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+
+    private BluetoothDevice bluetoothDevice;
+    private volatile BluetoothSocket bluetoothSocket;
+
+    public BluetoothTransport(BluetoothDevice bluetoothDevice) {
+        this.bluetoothDevice = bluetoothDevice;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void connect() throws IOException {
+        bluetoothSocket = bluetoothDevice.createInsecureRfcommSocketToServiceRecord(SERIAL_PORT_UUID);
+        bluetoothSocket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return bluetoothSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return bluetoothSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (bluetoothSocket != null) bluetoothSocket.close();
+    }
+}
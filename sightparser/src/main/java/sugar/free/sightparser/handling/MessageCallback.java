@@ -3,19 +3,40 @@ package sugar.free.sightparser.handling;
 import android.os.IBinder;
 import android.os.RemoteException;
 
-import sugar.free.sightparser.SerializationUtils;
+import sugar.free.sightparser.Errors;
 import sugar.free.sightparser.applayer.AppLayerMessage;
 
 public abstract class MessageCallback implements IMessageCallback {
 
+    private AppLayerMessage reusableMessage;
+
+    public MessageCallback() {
+    }
+
+    /**
+     * Every response is decoded into the given message instead of a new one. Only for callbacks
+     * that are done with a response before the next one arrives.
+     */
+    public MessageCallback(AppLayerMessage reusableMessage) {
+        this.reusableMessage = reusableMessage;
+    }
+
     @Override
     public void onMessage(byte[] message) throws RemoteException {
-        onMessage((AppLayerMessage) SerializationUtils.deserialize(message));
+        AppLayerMessage appLayerMessage;
+        try {
+            if (reusableMessage != null) appLayerMessage = AppLayerMessage.deserialize(message, reusableMessage);
+            else appLayerMessage = AppLayerMessage.deserialize(message);
+        } catch (Exception e) {
+            onError(e);
+            return;
+        }
+        onMessage(appLayerMessage);
     }
 
     @Override
     public void onError(byte[] error) throws RemoteException {
-        onError((Exception) SerializationUtils.deserialize(error));
+        onError(Errors.deserialize(error));
     }
 
     public abstract void onMessage(AppLayerMessage message);
@@ -4,7 +4,6 @@ import android.annotation.SuppressLint;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Intent;
 import android.os.IBinder;
 import android.os.RemoteException;
@@ -16,25 +15,27 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.UUID;
 
 import sugar.free.sightparser.DataStorage;
-import sugar.free.sightparser.SerializationUtils;
+import sugar.free.sightparser.Errors;
 import sugar.free.sightparser.applayer.AppLayerMessage;
+import sugar.free.sightparser.applayer.SerializedRequest;
 import sugar.free.sightparser.applayer.status.PumpStatusMessage;
 import sugar.free.sightparser.error.DisconnectedError;
-import sugar.free.sightparser.error.SightError;
 import sugar.free.sightparser.pipeline.Pipeline;
 import sugar.free.sightparser.pipeline.Status;
+import sugar.free.sightparser.pipeline.Transport;
 
 public class SightService extends Service {
 
     private static final int DISCONNECT_DELAY = 5000;
+    private static final int MAX_REQUESTS_IN_FLIGHT = 4;
 
     private String tempMac;
     private int clientsConnected = 0;
     private ConnectionThread connectionThread;
     private Pipeline pipeline;
+    private StatusCache statusCache;
     private DataStorage dataStorage;
     private Map<Long, IStatusCallback> statusCallbacks = new HashMap<>();
     private int statusCallbackID = 0;
@@ -59,7 +60,7 @@ public class SightService extends Service {
                     public void run() {
                         if (received) {
                             received = false;
-                            pipeline.requestMessage(new MessageRequest(new PumpStatusMessage(), new MessageCallback() {
+                            statusCache.requestMessage(new MessageRequest(new PumpStatusMessage(), new MessageCallback() {
                                 @Override
                                 public void onMessage(AppLayerMessage message) {
                                     received = true;
@@ -94,6 +95,7 @@ public class SightService extends Service {
 
         private String mac;
         private boolean pairing;
+        private volatile Transport transport;
 
         public ConnectionThread(String mac, boolean pairing) {
             this.pairing = pairing;
@@ -103,17 +105,18 @@ public class SightService extends Service {
         @SuppressLint("MissingPermission")
         @Override
         public void run() {
-            BluetoothSocket bluetoothSocket = null;
             try {
                 pipeline = new Pipeline(getDataStorage(), statusCallback);
+                statusCache = new StatusCache(pipeline);
+                pipeline.setMaxRequestsInFlight(MAX_REQUESTS_IN_FLIGHT);
                 pipeline.setStatus(Status.CONNECTING);
                 BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
                 if (!bluetoothAdapter.isEnabled()) bluetoothAdapter.enable();
                 BluetoothDevice bluetoothDevice = bluetoothAdapter.getRemoteDevice(mac);
                 if (pairing) removeBond(bluetoothDevice);
-                bluetoothSocket = bluetoothDevice.createInsecureRfcommSocketToServiceRecord(UUID.fromString("00001101-0000-1000-8000-00805f9b34fb"));
-                bluetoothSocket.connect();
-                pipeline.setChannels(bluetoothSocket.getInputStream(), bluetoothSocket.getOutputStream());
+                transport = new BluetoothTransport(bluetoothDevice);
+                transport.connect();
+                pipeline.setTransport(transport);
                 if (pairing) pipeline.establishPairing();
                 else pipeline.establishConnection();
                 timeoutTimer = new Timer();
@@ -124,27 +127,38 @@ public class SightService extends Service {
                         disconnect(true);
                     }
                 }, 4000);
-                while (pipeline.getStatus() != Status.DISCONNECTED && !Thread.currentThread().isInterrupted())
-                    pipeline.loopCall();
+                pipeline.readUntilDisconnected();
                 timeoutTimer.cancel();
-                pipeline.disconnect();
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
-                pipeline.receive(new DisconnectedError());
-                if (pipeline.getStatus() != Status.DISCONNECTED) pipeline.setStatus(Status.DISCONNECTED);
+                pipeline.close();
                 pipeline = null;
+                statusCache = null;
                 connectionThread = null;
-                try {
-                    if (bluetoothSocket != null) bluetoothSocket.close();
-                } catch (IOException e1) {
-                }
+                closeTransport();
                 if (reconnect) {
                     connect(mac, pairing);
                 }
             }
         }
 
+        @Override
+        public void interrupt() {
+            super.interrupt();
+            Pipeline pipeline = SightService.this.pipeline;
+            //The reader thread is blocked in read() and only wakes up when the transport is closed
+            if (pipeline != null) pipeline.abort();
+            closeTransport();
+        }
+
+        private void closeTransport() {
+            try {
+                if (transport != null) transport.close();
+            } catch (IOException e) {
+            }
+        }
+
         private void removeBond(BluetoothDevice bluetoothDevice) {
             try {
                 Method method = bluetoothDevice.getClass().getMethod("removeBond", (Class[]) null);
@@ -172,6 +186,7 @@ public class SightService extends Service {
         }
     }
 
+    @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         return START_STICKY;
     }
@@ -190,7 +205,17 @@ public class SightService extends Service {
     private ISightService.Stub binder = new ISightService.Stub() {
         @Override
         public void pair(String mac, boolean connected) throws RemoteException {
+            ConnectionThread connectionThread = SightService.this.connectionThread;
             SightService.this.disconnect(false);
+            //The old pipeline writes its session state when it is closed, which must not happen after the clear
+            if (connectionThread != null) {
+                try {
+                    connectionThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
             getDataStorage().clear();
             tempMac = mac;
             SightService.this.connect(mac, true);
@@ -208,8 +233,22 @@ public class SightService extends Service {
 
         @Override
         public void requestMessage(byte[] message, IMessageCallback callback) throws RemoteException {
-            MessageRequest messageRequest = new MessageRequest((AppLayerMessage) SerializationUtils.deserialize(message), callback);
-            if (pipeline != null && status == Status.CONNECTED) pipeline.requestMessage(messageRequest);
+            MessageRequest messageRequest;
+            try {
+                messageRequest = new MessageRequest(new SerializedRequest(message), callback);
+            } catch (Exception e) {
+                callback.onError(Errors.serialize(e));
+                return;
+            }
+            StatusCache statusCache = SightService.this.statusCache;
+            if (statusCache != null && status == Status.CONNECTED) statusCache.requestMessage(messageRequest);
+        }
+
+        @Override
+        public void requestStatusSnapshot(IMessageCallback callback) throws RemoteException {
+            StatusCache statusCache = SightService.this.statusCache;
+            if (statusCache != null && status == Status.CONNECTED) new StatusSnapshot(statusCache, callback).request();
+            else callback.onError(Errors.serialize(new DisconnectedError()));
         }
 
         @Override
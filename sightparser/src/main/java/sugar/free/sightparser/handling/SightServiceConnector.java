@@ -11,7 +11,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
-import sugar.free.sightparser.SerializationUtils;
 import sugar.free.sightparser.applayer.AppLayerMessage;
 import sugar.free.sightparser.pipeline.Status;
 
@@ -164,7 +163,17 @@ public class SightServiceConnector {
 
     public void requestMessage(AppLayerMessage message, MessageCallback callback) {
         try {
-            boundService.requestMessage(SerializationUtils.serialize(message), callback);
+            boundService.requestMessage(message.serialize(), callback);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        } catch (Exception e) {
+            callback.onError(e);
+        }
+    }
+
+    public void requestStatusSnapshot(IMessageCallback callback) {
+        try {
+            boundService.requestStatusSnapshot(callback);
         } catch (RemoteException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,187 @@
+package sugar.free.sightparser.handling;
+
+import android.annotation.SuppressLint;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import sugar.free.sightparser.applayer.AppLayerMessage;
+import sugar.free.sightparser.applayer.Service;
+import sugar.free.sightparser.applayer.status.ActiveBolusesMessage;
+import sugar.free.sightparser.applayer.status.BatteryAmountMessage;
+import sugar.free.sightparser.applayer.status.CartridgeAmountMessage;
+import sugar.free.sightparser.applayer.status.CurrentBasalMessage;
+import sugar.free.sightparser.applayer.status.CurrentTBRMessage;
+import sugar.free.sightparser.applayer.status.PumpStatusMessage;
+import sugar.free.sightparser.pipeline.Pipeline;
+
+/**
+ * Answers read-only status requests from a short-lived cache and lets concurrent requests for
+ * the same message share one round-trip to the pump. Any remote-control command invalidates
+ * the cache, both when it is sent and when it is answered.
+ */
+class StatusCache {
+
+    @SuppressLint("UseSparseArrays")
+    private static final Map<Integer, Long> TTLS = new HashMap<>();
+
+    static {
+        register(new PumpStatusMessage(), 1000);
+        register(new ActiveBolusesMessage(), 1000);
+        register(new CurrentTBRMessage(), 1000);
+        register(new CurrentBasalMessage(), 5000);
+        register(new CartridgeAmountMessage(), 5000);
+        register(new BatteryAmountMessage(), 30000);
+    }
+
+    private static void register(AppLayerMessage message, long ttl) {
+        TTLS.put(key(message), ttl);
+    }
+
+    private static int key(AppLayerMessage message) {
+        return (message.getService().getServiceID() & 0xFF) << 16 | message.getCommand() & 0xFFFF;
+    }
+
+    private final Pipeline pipeline;
+    @SuppressLint("UseSparseArrays")
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private int generation;
+
+    StatusCache(Pipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    void requestMessage(MessageRequest messageRequest) {
+        AppLayerMessage message = messageRequest.getAppLayerMessage();
+        int key = key(message);
+        Long ttl = TTLS.get(key);
+        if (ttl == null) {
+            if (message.getService() == Service.REMOTE_CONTROL) {
+                invalidate();
+                messageRequest = new MessageRequest(message, new InvalidatingCallback(messageRequest.getMessageCallback()));
+            }
+            pipeline.requestMessage(messageRequest);
+            return;
+        }
+        IMessageCallback callback = messageRequest.getMessageCallback();
+        byte[] cached = null;
+        CachingCallback cachingCallback = null;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.waiters != null) {
+                entry.waiters.add(callback);
+                return;
+            }
+            if (entry == null || System.currentTimeMillis() - entry.time >= ttl) {
+                entry = new Entry();
+                entry.waiters = new ArrayList<>();
+                entry.waiters.add(callback);
+                entries.put(key, entry);
+                cachingCallback = new CachingCallback(key, entry, generation);
+            } else cached = entry.value;
+        }
+        //RequestWorker calls back while holding its own lock, so never call into it while holding ours
+        if (cachingCallback != null) {
+            pipeline.requestMessage(new MessageRequest(message, cachingCallback));
+            return;
+        }
+        try {
+            callback.onMessage(cached);
+        } catch (RemoteException e) {
+        }
+    }
+
+    synchronized void invalidate() {
+        generation++;
+        for (Map.Entry<Integer, Entry> entry : new ArrayList<>(entries.entrySet()))
+            if (entry.getValue().waiters == null) entries.remove(entry.getKey());
+    }
+
+    private static class Entry {
+        private byte[] value;
+        private long time;
+        private List<IMessageCallback> waiters;
+    }
+
+    private class CachingCallback implements IMessageCallback {
+
+        private final int key;
+        private final Entry entry;
+        private final int generation;
+
+        private CachingCallback(int key, Entry entry, int generation) {
+            this.key = key;
+            this.entry = entry;
+            this.generation = generation;
+        }
+
+        @Override
+        public void onMessage(byte[] message) throws RemoteException {
+            List<IMessageCallback> waiters;
+            synchronized (StatusCache.this) {
+                waiters = entry.waiters;
+                entry.waiters = null;
+                entry.value = message;
+                entry.time = System.currentTimeMillis();
+                if (generation != StatusCache.this.generation && entries.get(key) == entry) entries.remove(key);
+            }
+            for (IMessageCallback waiter : waiters) {
+                try {
+                    waiter.onMessage(message);
+                } catch (RemoteException e) {
+                }
+            }
+        }
+
+        @Override
+        public void onError(byte[] error) throws RemoteException {
+            List<IMessageCallback> waiters;
+            synchronized (StatusCache.this) {
+                waiters = entry.waiters;
+                entry.waiters = null;
+                if (entries.get(key) == entry) entries.remove(key);
+            }
+            for (IMessageCallback waiter : waiters) {
+                try {
+                    waiter.onError(error);
+                } catch (RemoteException e) {
+                }
+            }
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+
+    private class InvalidatingCallback implements IMessageCallback {
+
+        private final IMessageCallback callback;
+
+        private InvalidatingCallback(IMessageCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onMessage(byte[] message) throws RemoteException {
+            invalidate();
+            callback.onMessage(message);
+        }
+
+        @Override
+        public void onError(byte[] error) throws RemoteException {
+            invalidate();
+            callback.onError(error);
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return callback.asBinder();
+        }
+    }
+}
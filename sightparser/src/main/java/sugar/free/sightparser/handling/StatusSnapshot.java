@@ -0,0 +1,145 @@
+package sugar.free.sightparser.handling;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import sugar.free.sightparser.Errors;
+import sugar.free.sightparser.applayer.AppLayerMessage;
+import sugar.free.sightparser.applayer.status.ActiveBolusesMessage;
+import sugar.free.sightparser.applayer.status.BatteryAmountMessage;
+import sugar.free.sightparser.applayer.status.CartridgeAmountMessage;
+import sugar.free.sightparser.applayer.status.CurrentBasalMessage;
+import sugar.free.sightparser.applayer.status.CurrentTBRMessage;
+import sugar.free.sightparser.applayer.status.PumpStatus;
+import sugar.free.sightparser.applayer.status.PumpStatusMessage;
+import sugar.free.sightparser.handling.taskrunners.StatusTaskRunner;
+import sugar.free.sightparser.pipeline.ByteBuf;
+
+/**
+ * Requests everything the status screen shows inside the service and answers the client once
+ * with the serialized responses, which {@link StatusTaskRunner.StatusResult#deserialize(byte[])}
+ * turns back into a result. Each response is prefixed with its length. Like the step-by-step
+ * runner did, boluses, TBR and basal are only requested once the pump status shows the pump is
+ * not stopped; otherwise their length is 0.
+ */
+class StatusSnapshot {
+
+    private static final int PUMP_STATUS = 0;
+    private static final int ACTIVE_BOLUSES = 1;
+    private static final int CURRENT_TBR = 2;
+    private static final int CURRENT_BASAL = 3;
+    private static final int BATTERY_AMOUNT = 4;
+    private static final int CARTRIDGE_AMOUNT = 5;
+    private static final byte[] NOT_REQUESTED = new byte[0];
+
+    private final StatusCache statusCache;
+    private final IMessageCallback callback;
+    private final AppLayerMessage[] requests = new AppLayerMessage[] {
+            new PumpStatusMessage(),
+            new ActiveBolusesMessage(),
+            new CurrentTBRMessage(),
+            new CurrentBasalMessage(),
+            new BatteryAmountMessage(),
+            new CartridgeAmountMessage()
+    };
+    private final byte[][] responses = new byte[requests.length][];
+    private int pending = requests.length;
+    private boolean done;
+
+    StatusSnapshot(StatusCache statusCache, IMessageCallback callback) {
+        this.statusCache = statusCache;
+        this.callback = callback;
+    }
+
+    void request() {
+        request(PUMP_STATUS);
+        request(BATTERY_AMOUNT);
+        request(CARTRIDGE_AMOUNT);
+    }
+
+    private void request(final int index) {
+        statusCache.requestMessage(new MessageRequest(requests[index], new IMessageCallback() {
+            @Override
+            public void onMessage(byte[] message) {
+                onResponse(index, message);
+            }
+
+            @Override
+            public void onError(byte[] error) {
+                onFailure(error);
+            }
+
+            @Override
+            public IBinder asBinder() {
+                return null;
+            }
+        }));
+    }
+
+    //Callbacks arrive with RequestWorker's lock held, so requests and results are passed on outside of ours
+    private void onResponse(int index, byte[] message) {
+        PumpStatus pumpStatus = null;
+        if (index == PUMP_STATUS) {
+            try {
+                //The request is decoded into itself, the response only tells whether to ask for the rest
+                pumpStatus = AppLayerMessage.deserialize(message, (PumpStatusMessage) requests[PUMP_STATUS]).getPumpStatus();
+            } catch (Exception e) {
+                onFailure(Errors.serialize(e));
+                return;
+            }
+        }
+        boolean requestRunningState = false;
+        byte[] snapshot = null;
+        synchronized (this) {
+            if (done) return;
+            responses[index] = message;
+            if (pumpStatus == PumpStatus.STOPPED) {
+                responses[ACTIVE_BOLUSES] = NOT_REQUESTED;
+                responses[CURRENT_TBR] = NOT_REQUESTED;
+                responses[CURRENT_BASAL] = NOT_REQUESTED;
+                pending -= 3;
+            } else if (pumpStatus != null) requestRunningState = true;
+            if (--pending == 0) {
+                done = true;
+                snapshot = serialize();
+            }
+        }
+        if (requestRunningState) {
+            request(ACTIVE_BOLUSES);
+            request(CURRENT_TBR);
+            request(CURRENT_BASAL);
+        }
+        if (snapshot != null) {
+            try {
+                callback.onMessage(snapshot);
+            } catch (RemoteException e) {
+            }
+        }
+    }
+
+    private byte[] serialize() {
+        int length = 0;
+        for (byte[] response : responses) length += 2 + response.length;
+        ByteBuf byteBuf = new ByteBuf(length);
+        for (byte[] response : responses) {
+            byteBuf.putShortLE((short) response.length);
+            byteBuf.putBytes(response);
+        }
+        return byteBuf.getBytes();
+    }
+
+    private void onFailure(byte[] error) {
+        synchronized (this) {
+            if (done) return;
+            done = true;
+        }
+        sendError(error);
+    }
+
+    private void sendError(byte[] error) {
+        try {
+            callback.onError(error);
+        } catch (RemoteException e) {
+        }
+    }
+}
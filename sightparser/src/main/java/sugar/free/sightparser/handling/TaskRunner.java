@@ -25,19 +25,31 @@ public abstract class TaskRunner {
 
     protected abstract AppLayerMessage run(AppLayerMessage message) throws Exception;
 
+    protected void start() {
+        messageCallback.onMessage((AppLayerMessage) null);
+    }
+
     protected void finish(Object result) {
+        if (!active) return;
         active = false;
         resultCallback.onResult(result);
         if (statusCallbackRegistered) serviceConnector.removeStatusCallback(statusCallback);
     }
 
+    protected void fail(Exception error) {
+        messageCallback.onError(error);
+    }
+
+    protected SightServiceConnector getServiceConnector() {
+        return serviceConnector;
+    }
+
     public void fetch(ResultCallback resultCallback) {
         if (run) throw new IllegalStateException("TaskRunners can only be run once.");
         run = true;
         this.resultCallback = resultCallback;
         active = true;
-        if (serviceConnector.getStatus() == Status.CONNECTED)
-            messageCallback.onMessage((AppLayerMessage) null);
+        if (serviceConnector.getStatus() == Status.CONNECTED) start();
         else messageCallback.onError(new DisconnectedError());
     }
 
@@ -85,7 +97,7 @@ public abstract class TaskRunner {
             if (status == Status.CONNECTED) {
                 serviceConnector.removeStatusCallback(this);
                 statusCallbackRegistered = false;
-                messageCallback.onMessage((AppLayerMessage) null);
+                start();
             } else if (status == Status.DISCONNECTED) {
                 messageCallback.onError(new DisconnectedError());
             }
@@ -1,56 +1,65 @@
 package sugar.free.sightparser.handling.taskrunners;
 
-import android.util.Log;
+import android.os.IBinder;
+import android.os.RemoteException;
 
 import java.io.Serializable;
 
 import lombok.Getter;
+import sugar.free.sightparser.Errors;
 import sugar.free.sightparser.applayer.AppLayerMessage;
 import sugar.free.sightparser.applayer.status.ActiveBolusesMessage;
 import sugar.free.sightparser.applayer.status.BatteryAmountMessage;
 import sugar.free.sightparser.applayer.status.CartridgeAmountMessage;
 import sugar.free.sightparser.applayer.status.CurrentBasalMessage;
 import sugar.free.sightparser.applayer.status.CurrentTBRMessage;
-import sugar.free.sightparser.applayer.status.PumpStatus;
 import sugar.free.sightparser.applayer.status.PumpStatusMessage;
+import sugar.free.sightparser.handling.IMessageCallback;
 import sugar.free.sightparser.handling.SightServiceConnector;
 import sugar.free.sightparser.handling.TaskRunner;
+import sugar.free.sightparser.pipeline.ByteBuf;
 
 public class StatusTaskRunner extends TaskRunner {
 
-    private StatusResult statusResult = new StatusResult();
-
     public StatusTaskRunner(SightServiceConnector serviceConnector) {
         super(serviceConnector);
     }
 
+    @Override
+    protected void start() {
+        getServiceConnector().requestStatusSnapshot(snapshotCallback);
+    }
+
     @Override
     protected AppLayerMessage run(AppLayerMessage message) throws Exception {
-        if (message == null) return new PumpStatusMessage();
-        else if (message instanceof PumpStatusMessage) {
-            PumpStatusMessage pumpStatusMessage = (PumpStatusMessage) message;
-            statusResult.pumpStatusMessage = pumpStatusMessage;
-            if (statusResult.pumpStatusMessage.getPumpStatus() != PumpStatus.STOPPED)return new ActiveBolusesMessage();
-            else return new BatteryAmountMessage();
-        } else if (message instanceof ActiveBolusesMessage) {
-            statusResult.activeBolusesMessage = (ActiveBolusesMessage) message;
-            return new CurrentTBRMessage();
-        } else if (message instanceof CurrentTBRMessage) {
-            statusResult.currentTBRMessage = (CurrentTBRMessage) message;
-            return new CurrentBasalMessage();
-        } else if (message instanceof CurrentBasalMessage) {
-            statusResult.currentBasalMessage = (CurrentBasalMessage) message;
-            return new BatteryAmountMessage();
-        } else if (message instanceof BatteryAmountMessage) {
-            statusResult.batteryAmountMessage = (BatteryAmountMessage) message;
-            return new CartridgeAmountMessage();
-        } else if (message instanceof CartridgeAmountMessage) {
-            statusResult.cartridgeAmountMessage = (CartridgeAmountMessage) message;
-            finish(statusResult);
-        }
+        //The whole status arrives as one snapshot, see start()
         return null;
     }
 
+    private IMessageCallback snapshotCallback = new IMessageCallback() {
+        @Override
+        public void onMessage(byte[] result) throws RemoteException {
+            StatusResult statusResult;
+            try {
+                statusResult = StatusResult.deserialize(result);
+            } catch (Exception e) {
+                fail(e);
+                return;
+            }
+            finish(statusResult);
+        }
+
+        @Override
+        public void onError(byte[] error) throws RemoteException {
+            fail(Errors.deserialize(error));
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    };
+
     @Getter
     public static final class StatusResult implements Serializable {
         private PumpStatusMessage pumpStatusMessage;
@@ -59,5 +68,32 @@ public class StatusTaskRunner extends TaskRunner {
         private CurrentBasalMessage currentBasalMessage;
         private BatteryAmountMessage batteryAmountMessage;
         private CartridgeAmountMessage cartridgeAmountMessage;
+
+        public StatusResult(PumpStatusMessage pumpStatusMessage, ActiveBolusesMessage activeBolusesMessage,
+                            CurrentTBRMessage currentTBRMessage, CurrentBasalMessage currentBasalMessage,
+                            BatteryAmountMessage batteryAmountMessage, CartridgeAmountMessage cartridgeAmountMessage) {
+            this.pumpStatusMessage = pumpStatusMessage;
+            this.activeBolusesMessage = activeBolusesMessage;
+            this.currentTBRMessage = currentTBRMessage;
+            this.currentBasalMessage = currentBasalMessage;
+            this.batteryAmountMessage = batteryAmountMessage;
+            this.cartridgeAmountMessage = cartridgeAmountMessage;
+        }
+
+        public static StatusResult deserialize(byte[] snapshot) throws Exception {
+            ByteBuf byteBuf = ByteBuf.wrap(snapshot);
+            AppLayerMessage[] messages = new AppLayerMessage[6];
+            for (int i = 0; i < messages.length; i++) {
+                //Messages the pump was not asked for (boluses, TBR and basal while stopped) have length 0
+                int length = byteBuf.readShortLE() & 0xFFFF;
+                if (length > 0) messages[i] = AppLayerMessage.deserialize(byteBuf.readBytes(length));
+            }
+            return new StatusResult((PumpStatusMessage) messages[0],
+                    (ActiveBolusesMessage) messages[1],
+                    (CurrentTBRMessage) messages[2],
+                    (CurrentBasalMessage) messages[3],
+                    (BatteryAmountMessage) messages[4],
+                    (CartridgeAmountMessage) messages[5]);
+        }
     }
 }
@@ -1,28 +1,82 @@
 package sugar.free.sightparser.pipeline;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.util.Arrays;
+
+import sugar.free.sightparser.error.ReceiveBufferOverflowError;
 
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class ByteBuf {
 
     private byte[] bytes;
-    private int size = 0;
+    private int start;
+    private int end;
+    private int maxLength;
+    private int readerIndex;
+    private int writerIndex;
+    private int highWaterMark = 0;
 
     public ByteBuf(int length) {
+        this(length, length);
+    }
+
+    public ByteBuf(int length, int maxLength) {
         bytes = new byte[length];
+        end = length;
+        this.maxLength = Math.max(length, maxLength);
+    }
+
+    private ByteBuf(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        start = offset;
+        end = offset + length;
+        maxLength = length;
+        readerIndex = offset;
+        writerIndex = end;
+    }
+
+    public static ByteBuf wrap(byte[] bytes) {
+        return new ByteBuf(bytes, 0, bytes.length);
+    }
+
+    public ByteBuf slice(int position, int length) {
+        return new ByteBuf(bytes, readerIndex + position, length);
+    }
+
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int arrayOffset() {
+        return readerIndex;
     }
 
     public int length() {
-        return bytes.length;
+        return end - start;
+    }
+
+    public int maxLength() {
+        return maxLength;
+    }
+
+    public int writableBytes() {
+        return maxLength - size();
+    }
+
+    public int highWaterMark() {
+        return highWaterMark;
     }
 
     public int size() {
-        return size;
+        return writerIndex - readerIndex;
     }
 
     public void putByte(byte b) {
-        bytes[size] = b;
-        size++;
+        ensureWritable(1);
+        bytes[writerIndex++] = b;
     }
 
     public void putBytes(byte[] b) {
@@ -30,7 +84,9 @@ public class ByteBuf {
     }
 
     public void putBytes(byte b, int count) {
-        for (int i = 0; i < count; i++) putByte(b);
+        ensureWritable(count);
+        Arrays.fill(bytes, writerIndex, writerIndex + count, b);
+        writerIndex += count;
     }
 
     public void putBytesLE(byte[] b) {
@@ -38,37 +94,56 @@ public class ByteBuf {
     }
 
     public void putBytes(byte[] b, int length) {
-        System.arraycopy(b, 0, bytes, size, length);
-        size += length;
+        ensureWritable(length);
+        System.arraycopy(b, 0, bytes, writerIndex, length);
+        writerIndex += length;
+    }
+
+    public int putBytes(InputStream inputStream, int length) throws IOException {
+        reserve(Math.min(length, writableBytes()));
+        int read = inputStream.read(bytes, writerIndex, Math.min(length, end - writerIndex));
+        if (read > 0) {
+            writerIndex += read;
+            highWaterMark = Math.max(highWaterMark, size());
+        }
+        return read;
     }
 
     public void putBytesLE(byte[] b, int length) {
-        for (int i = length - 1; i >= 0; i--) putByte(b[i]);
+        ensureWritable(length);
+        for (int i = length - 1; i >= 0; i--) bytes[writerIndex++] = b[i];
     }
 
     public void putShort(short s) {
-        putByte((byte) (s >> 8));
-        putByte((byte) s);
+        ensureWritable(2);
+        bytes[writerIndex] = (byte) (s >> 8);
+        bytes[writerIndex + 1] = (byte) s;
+        writerIndex += 2;
     }
 
     public void putShortLE(short s) {
-        putByte((byte) s);
-        putByte((byte) (s >> 8));
-
+        ensureWritable(2);
+        bytes[writerIndex] = (byte) s;
+        bytes[writerIndex + 1] = (byte) (s >> 8);
+        writerIndex += 2;
     }
 
     public void putInt(int i) {
-        putByte((byte) (i >> 24));
-        putByte((byte) (i >> 16));
-        putByte((byte) (i >> 8));
-        putByte((byte) i);
+        ensureWritable(4);
+        bytes[writerIndex] = (byte) (i >> 24);
+        bytes[writerIndex + 1] = (byte) (i >> 16);
+        bytes[writerIndex + 2] = (byte) (i >> 8);
+        bytes[writerIndex + 3] = (byte) i;
+        writerIndex += 4;
     }
 
     public void putIntLE(int i) {
-        putByte((byte) i);
-        putByte((byte) (i >> 8));
-        putByte((byte) (i >> 16));
-        putByte((byte) (i >> 24));
+        ensureWritable(4);
+        bytes[writerIndex] = (byte) i;
+        bytes[writerIndex + 1] = (byte) (i >> 8);
+        bytes[writerIndex + 2] = (byte) (i >> 16);
+        bytes[writerIndex + 3] = (byte) (i >> 24);
+        writerIndex += 4;
     }
 
     public void putFloat(float f) {
@@ -88,29 +163,33 @@ public class ByteBuf {
     }
 
     public void putLong(long l) {
-        putByte((byte) (l >> 56));
-        putByte((byte) (l >> 48));
-        putByte((byte) (l >> 40));
-        putByte((byte) (l >> 32));
-        putByte((byte) (l >> 24));
-        putByte((byte) (l >> 16));
-        putByte((byte) (l >> 8));
-        putByte((byte) l);
+        ensureWritable(8);
+        bytes[writerIndex] = (byte) (l >> 56);
+        bytes[writerIndex + 1] = (byte) (l >> 48);
+        bytes[writerIndex + 2] = (byte) (l >> 40);
+        bytes[writerIndex + 3] = (byte) (l >> 32);
+        bytes[writerIndex + 4] = (byte) (l >> 24);
+        bytes[writerIndex + 5] = (byte) (l >> 16);
+        bytes[writerIndex + 6] = (byte) (l >> 8);
+        bytes[writerIndex + 7] = (byte) l;
+        writerIndex += 8;
     }
 
     public void putLongLE(long l) {
-        putByte((byte) l);
-        putByte((byte) (l >> 8));
-        putByte((byte) (l >> 16));
-        putByte((byte) (l >> 24));
-        putByte((byte) (l >> 32));
-        putByte((byte) (l >> 40));
-        putByte((byte) (l >> 48));
-        putByte((byte) (l >> 56));
+        ensureWritable(8);
+        bytes[writerIndex] = (byte) l;
+        bytes[writerIndex + 1] = (byte) (l >> 8);
+        bytes[writerIndex + 2] = (byte) (l >> 16);
+        bytes[writerIndex + 3] = (byte) (l >> 24);
+        bytes[writerIndex + 4] = (byte) (l >> 32);
+        bytes[writerIndex + 5] = (byte) (l >> 40);
+        bytes[writerIndex + 6] = (byte) (l >> 48);
+        bytes[writerIndex + 7] = (byte) (l >> 56);
+        writerIndex += 8;
     }
 
     public byte getByte(int position) {
-        return bytes[position];
+        return bytes[readerIndex + position];
     }
 
     public byte getByte() {
@@ -125,14 +204,14 @@ public class ByteBuf {
 
     public byte[] getBytes(int position, int length) {
         byte[] copy = new byte[length];
-        System.arraycopy(bytes, position, copy, 0, length);
+        System.arraycopy(bytes, readerIndex + position, copy, 0, length);
         return copy;
     }
 
     public byte[] getBytesLE(int position, int length) {
         byte[] copy = new byte[length];
         for (int i = 0; i < length; i++) {
-            copy[i] = bytes[length - 1 - i + position];
+            copy[i] = bytes[readerIndex + position + length - 1 - i];
         }
         return copy;
     }
@@ -158,11 +237,13 @@ public class ByteBuf {
     }
 
     public short getShort(int position) {
+        position += readerIndex;
         return (short) (bytes[position++]  << 8 |
                 bytes[position] & 0xFF);
     }
 
     public short getShortLE(int position) {
+        position += readerIndex;
         return (short) (bytes[position++] & 0xFF |
                 bytes[position]  << 8);
     }
@@ -188,6 +269,7 @@ public class ByteBuf {
     }
 
     public int getInt(int position) {
+        position += readerIndex;
         return bytes[position++] << 24 |
                 (bytes[position++] & 0xFF) << 16 |
                 (bytes[position++] & 0xFF) << 8 |
@@ -195,6 +277,7 @@ public class ByteBuf {
     }
 
     public int getIntLE(int position) {
+        position += readerIndex;
         return bytes[position++] & 0xFF |
                 (bytes[position++] & 0xFF) << 8  |
                 (bytes[position++] & 0xFF) << 16 |
@@ -274,6 +357,7 @@ public class ByteBuf {
     }
 
     public long getLong(int position) {
+        position += readerIndex;
         return ((long) bytes[position++]) << 56 |
                 ((long) (bytes[position++] & 0xFF)) << 48 |
                 ((long) (bytes[position++] & 0xFF)) << 40 |
@@ -285,6 +369,7 @@ public class ByteBuf {
     }
 
     public long getLongLE(int position) {
+        position += readerIndex;
         return (long) bytes[position++] & 0xFF |
                 ((long) (bytes[position++] & 0xFF)) << 8 |
                 ((long) (bytes[position++] & 0xFF)) << 16 |
@@ -316,14 +401,14 @@ public class ByteBuf {
     }
 
     public byte[] getBytes() {
-        byte[] copy = new byte[size];
-        System.arraycopy(bytes, 0, copy, 0, size);
+        byte[] copy = new byte[size()];
+        System.arraycopy(bytes, readerIndex, copy, 0, copy.length);
         return copy;
     }
 
     public byte[] getBytesLE() {
-        byte[] copy = new byte[size];
-        for (int i = 0; i < size; i++) copy[i] = bytes[size - 1 - i];
+        byte[] copy = new byte[size()];
+        for (int i = 0; i < copy.length; i++) copy[i] = bytes[writerIndex - 1 - i];
         return copy;
     }
 
@@ -334,15 +419,44 @@ public class ByteBuf {
     }
 
     public void shift(int offset) {
-        System.arraycopy(bytes, offset, bytes, 0, bytes.length - offset);
-        size -= offset;
+        readerIndex += offset;
+        if (readerIndex >= writerIndex) {
+            readerIndex = start;
+            writerIndex = start;
+        }
+    }
+
+    private void ensureWritable(int length) {
+        highWaterMark = Math.max(highWaterMark, size() + length);
+        reserve(length);
+    }
+
+    private void reserve(int length) {
+        if (writerIndex + length <= end) return;
+        compact();
+        if (writerIndex + length <= end) return;
+        //Slices and wrapped arrays cannot grow, writing on would overwrite whatever follows them
+        if (writerIndex - start + length > maxLength) {
+            BufferOverflowException exception = new BufferOverflowException();
+            exception.initCause(new ReceiveBufferOverflowError(length, writableBytes()));
+            throw exception;
+        }
+        bytes = Arrays.copyOf(bytes, Math.min(Math.max(bytes.length * 2, writerIndex + length), maxLength));
+        end = bytes.length;
+    }
+
+    private void compact() {
+        if (readerIndex == start) return;
+        System.arraycopy(bytes, readerIndex, bytes, start, writerIndex - readerIndex);
+        writerIndex -= readerIndex - start;
+        readerIndex = start;
     }
 
     @Override
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder("[");
-        for (int i = 0; i < size; i++) {
-            if (i != 0) stringBuilder.append(" ");
+        for (int i = readerIndex; i < writerIndex; i++) {
+            if (i != readerIndex) stringBuilder.append(" ");
             stringBuilder.append(String.format("%02X ", bytes[i]));
         }
         stringBuilder.append("]");
@@ -5,24 +5,31 @@ import org.spongycastle.util.encoders.Hex;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import lombok.Getter;
 import sugar.free.sightparser.DataStorage;
+import sugar.free.sightparser.SessionStorage;
 import sugar.free.sightparser.applayer.AppLayerMessage;
 import sugar.free.sightparser.applayer.Service;
-import sugar.free.sightparser.applayer.connection.ActivateServiceMessage;
 import sugar.free.sightparser.applayer.connection.BindMessage;
 import sugar.free.sightparser.applayer.connection.ConnectMessage;
 import sugar.free.sightparser.applayer.connection.DisconnectMessage;
-import sugar.free.sightparser.applayer.connection.ServiceChallengeMessage;
+import sugar.free.sightparser.authlayer.AuthLayerMessage;
 import sugar.free.sightparser.authlayer.ConnectionRequest;
+import sugar.free.sightparser.authlayer.DataMessage;
 import sugar.free.sightparser.authlayer.DisconnectRequest;
+import sugar.free.sightparser.authlayer.SynAckResponse;
 import sugar.free.sightparser.authlayer.SynRequest;
 import sugar.free.sightparser.crypto.DerivedKeys;
+import sugar.free.sightparser.crypto.Nonce;
+import sugar.free.sightparser.error.DisconnectedError;
+import sugar.free.sightparser.error.SendFailedError;
 import sugar.free.sightparser.handling.MessageRequest;
 import sugar.free.sightparser.handling.StatusCallback;
 import sugar.free.sightparser.pipeline.handlers.AppLayerProcessor;
@@ -34,15 +41,31 @@ import sugar.free.sightparser.pipeline.handlers.RequestWorker;
 
 public class Pipeline {
 
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    private static final int MAX_RECEIVE_BUFFER_SIZE = 65536;
+
     private StatusCallback statusCallback;
 
-    private ByteBuf byteBuf = new ByteBuf(4096);
-    private List<Handler> handlers = new ArrayList<>();
+    private ByteBuf byteBuf = new ByteBuf(RECEIVE_BUFFER_SIZE, MAX_RECEIVE_BUFFER_SIZE);
+    private ByteProcessor byteProcessor = new ByteProcessor(byteBuf);
+    private List<Registration<InboundHandler>> inboundHandlers = new ArrayList<>();
+    private List<Registration<OutboundHandler>> outboundHandlers = new ArrayList<>();
+    private Map<Class<?>, InboundHandler[]> inboundDispatchTable = new ConcurrentHashMap<>();
+    private Map<Class<?>, OutboundHandler[]> outboundDispatchTable = new ConcurrentHashMap<>();
+    private ThreadLocal<DispatchQueue> dispatchQueue = new ThreadLocal<DispatchQueue>() {
+        @Override
+        protected DispatchQueue initialValue() {
+            return new DispatchQueue();
+        }
+    };
 
     private DataStorage dataStorage;
+    private SessionStorage sessionStorage;
     @Getter
     private OutputStream outputStream;
     private InputStream inputStream;
+    private Transport transport;
+    private boolean closed;
 
     @Getter
     private DerivedKeys derivedKeys;
@@ -50,9 +73,9 @@ public class Pipeline {
     private int commID = 0;
 
     @Getter
-    private BigInteger lastNonceSent = BigInteger.ZERO;
+    private Nonce lastNonceSent;
     @Getter
-    private BigInteger lastNonceReceived = null;
+    private Nonce lastNonceReceived = null;
 
     @Getter
     private Status status = Status.DISCONNECTED;
@@ -68,68 +91,163 @@ public class Pipeline {
             derivedKeys.setIncomingKey(Hex.decode(dataStorage.get("INCOMINGKEY")));
             derivedKeys.setOutgoingKey(Hex.decode(dataStorage.get("OUTGOINGKEY")));
         }
-        if (dataStorage.contains("COMMID"))
-            commID = Integer.parseInt(dataStorage.get("COMMID"));
-        if (dataStorage.contains("LASTNONCESENT"))
-            lastNonceSent = new BigInteger(Hex.decode(dataStorage.get("LASTNONCESENT")));
-        if (dataStorage.contains("LASTNONCERECEIVED"))
-            lastNonceReceived = new BigInteger(Hex.decode(dataStorage.get("LASTNONCERECEIVED")));
+        sessionStorage = new SessionStorage(dataStorage);
+        commID = sessionStorage.getCommID();
+        lastNonceSent = sessionStorage.getLastNonceSent();
+        lastNonceReceived = sessionStorage.getLastNonceReceived();
         setupPipeline();
     }
 
     private void setupPipeline() {
-        handlers.add(new ByteProcessor(byteBuf));
-        handlers.add(new AuthLayerProcessor());
-        handlers.add(new AppLayerProcessor());
-        handlers.add(new PairingEstablisher());
-        handlers.add(new ConnectionEstablisher());
-        handlers.add(requestWorker);
+        AuthLayerProcessor authLayerProcessor = new AuthLayerProcessor();
+        AppLayerProcessor appLayerProcessor = new AppLayerProcessor();
+        PairingEstablisher pairingEstablisher = new PairingEstablisher();
+        ConnectionEstablisher connectionEstablisher = new ConnectionEstablisher();
+
+        addInboundHandler(byte[].class, byteProcessor);
+        addInboundHandler(ByteBuf.class, authLayerProcessor);
+        addInboundHandler(DataMessage.class, appLayerProcessor);
+        addInboundHandler(AuthLayerMessage.class, pairingEstablisher);
+        addInboundHandler(BindMessage.class, pairingEstablisher);
+        addInboundHandler(SynAckResponse.class, connectionEstablisher);
+        addInboundHandler(ConnectMessage.class, connectionEstablisher);
+        addInboundHandler(AppLayerMessage.class, requestWorker);
+        addInboundHandler(Exception.class, requestWorker);
+
+        addOutboundHandler(AppLayerMessage.class, appLayerProcessor);
+        addOutboundHandler(AuthLayerMessage.class, authLayerProcessor);
+        addOutboundHandler(ByteBuf.class, byteProcessor);
+        addOutboundHandler(Exception.class, requestWorker);
+    }
+
+    private void addInboundHandler(Class<?> type, InboundHandler handler) {
+        inboundHandlers.add(new Registration<>(type, handler));
+        inboundDispatchTable.clear();
+    }
+
+    private void addOutboundHandler(Class<?> type, OutboundHandler handler) {
+        outboundHandlers.add(new Registration<>(type, handler));
+        outboundDispatchTable.clear();
     }
 
+    /**
+     * Inbound messages are queued and dispatched iteratively, so a handler passing a decoded
+     * message on to the next layer returns before that layer runs. Outbound messages are
+     * dispatched directly (the chain is at most AppLayer -> AuthLayer -> Byte deep) so a frame
+     * is on the wire by the time {@link #send(Object)} returns. Exceptions thrown by handlers
+     * are queued in both directions; outbound ones are wrapped in a {@link SendFailedError}
+     * naming the message whose send caused them.
+     */
     public void receive(Object message) {
+        DispatchQueue queue = dispatchQueue.get();
+        queue.inbound.add(message);
+        drain(queue);
+    }
+
+    public void send(Object message) {
+        DispatchQueue queue = dispatchQueue.get();
+        if (queue.sendDepth++ == 0) queue.sending = message;
+        try {
+            dispatchOutbound(message, queue);
+        } finally {
+            if (--queue.sendDepth == 0) queue.sending = null;
+        }
+        drain(queue);
+    }
+
+    private void drain(DispatchQueue queue) {
+        if (queue.draining || queue.sendDepth > 0) return;
+        queue.draining = true;
+        try {
+            Object message;
+            while (true) {
+                if ((message = queue.outbound.poll()) != null) dispatchOutbound(message, queue);
+                else if ((message = queue.inbound.poll()) != null) dispatchInbound(message, queue);
+                else break;
+            }
+        } finally {
+            queue.draining = false;
+        }
+    }
+
+    private void dispatchInbound(Object message, DispatchQueue queue) {
         if (message instanceof Exception) ((Exception) message).printStackTrace();
-        for (Handler handler : handlers) {
-            if (handler instanceof InboundHandler) {
-                InboundHandler inboundHandler = (InboundHandler) handler;
-                try {
-                    inboundHandler.onInboundMessage(message, this);
-                } catch (IOException e) {
-                    setStatus(Status.DISCONNECTED);
-                } catch (Exception e) {
-                    receive(e);
-                }
+        for (InboundHandler handler : getInboundHandlers(message.getClass())) {
+            try {
+                handler.onInboundMessage(message, this);
+            } catch (IOException e) {
+                setStatus(Status.DISCONNECTED);
+            } catch (Exception e) {
+                queue.inbound.add(e);
             }
         }
     }
 
-    public void send(Object message) {
+    private void dispatchOutbound(Object message, DispatchQueue queue) {
         if (message instanceof Exception) ((Exception) message).printStackTrace();
-        for (Handler handler : handlers) {
-            if (handler instanceof OutboundHandler) {
-                OutboundHandler outboundHandler = (OutboundHandler) handler;
-                try {
-                    outboundHandler.onOutboundMessage(message, this);
-                } catch (IOException e) {
-                    setStatus(Status.DISCONNECTED);
-                }  catch (Exception e) {
-                    send(e);
-                }
+        for (OutboundHandler handler : getOutboundHandlers(message.getClass())) {
+            try {
+                handler.onOutboundMessage(message, this);
+            } catch (IOException e) {
+                setStatus(Status.DISCONNECTED);
+            } catch (Exception e) {
+                queue.outbound.add(queue.sending != null ? new SendFailedError(queue.sending, e) : e);
             }
         }
     }
 
+    private InboundHandler[] getInboundHandlers(Class<?> type) {
+        InboundHandler[] handlers = inboundDispatchTable.get(type);
+        if (handlers == null) {
+            handlers = resolve(inboundHandlers, type).toArray(new InboundHandler[0]);
+            inboundDispatchTable.put(type, handlers);
+        }
+        return handlers;
+    }
+
+    private OutboundHandler[] getOutboundHandlers(Class<?> type) {
+        OutboundHandler[] handlers = outboundDispatchTable.get(type);
+        if (handlers == null) {
+            handlers = resolve(outboundHandlers, type).toArray(new OutboundHandler[0]);
+            outboundDispatchTable.put(type, handlers);
+        }
+        return handlers;
+    }
+
+    private static <T extends Handler> List<T> resolve(List<Registration<T>> registrations, Class<?> type) {
+        List<T> handlers = new ArrayList<>();
+        for (Registration<T> registration : registrations)
+            if (registration.type.isAssignableFrom(type) && !handlers.contains(registration.handler))
+                handlers.add(registration.handler);
+        return handlers;
+    }
+
+    /**
+     * Reads from the transport until the pipeline is disconnected or the thread is interrupted.
+     * A read blocked on the transport only returns once the transport is closed, see {@link #abort()}.
+     */
+    public void readUntilDisconnected() {
+        while (status != Status.DISCONNECTED && !Thread.currentThread().isInterrupted()) loopCall();
+    }
+
     public void loopCall() {
         try {
-            if (inputStream.available() > 0) {
-                byte[] bytes = new byte[inputStream.available()];
-                inputStream.read(bytes);
-                receive(bytes);
-            }
+            if (byteProcessor.read(inputStream, this) == -1) setStatus(Status.DISCONNECTED);
         } catch (IOException e) {
             setStatus(Status.DISCONNECTED);
+        } catch (Exception e) {
+            receive(e);
         }
     }
 
+    public int getReceiveBufferHighWaterMark() {
+        return byteBuf.highWaterMark();
+    }
+
+    public int getReceiveBufferCapacity() {
+        return byteBuf.length();
+    }
+
     public void setDerivedKeys(DerivedKeys derivedKeys) {
         this.derivedKeys = derivedKeys;
         dataStorage.set("INCOMINGKEY", Hex.toHexString(derivedKeys.getIncomingKey()));
@@ -137,20 +255,18 @@ public class Pipeline {
     }
 
     public void setCommID(int commID) {
-        dataStorage.set("COMMID", commID + "");
+        sessionStorage.setCommID(commID);
         this.commID = commID;
     }
 
-
-    public void setLastNonceSent(BigInteger lastNonceSent) {
+    public void setLastNonceSent(Nonce lastNonceSent) {
         this.lastNonceSent = lastNonceSent;
-        dataStorage.set("LASTNONCESENT", Hex.toHexString(lastNonceSent.toByteArray()));
+        sessionStorage.setLastNonceSent(lastNonceSent);
     }
 
-
-    public void setLastNonceReceived(BigInteger lastNonceReceived) {
+    public void setLastNonceReceived(Nonce lastNonceReceived) {
         this.lastNonceReceived = lastNonceReceived;
-        dataStorage.set("LASTNONCERECEIVED", Hex.toHexString(lastNonceReceived.toByteArray()));
+        sessionStorage.setLastNonceReceived(lastNonceReceived);
     }
 
     public void setStatus(Status status) {
@@ -173,18 +289,69 @@ public class Pipeline {
         }
     }
 
+    /**
+     * Ends the session without waiting for the pump, e.g. when it stopped answering. Closing the
+     * transport wakes up the thread blocked in {@link #loopCall()}.
+     */
+    public void abort() {
+        disconnect();
+        if (status != Status.DISCONNECTED) setStatus(Status.DISCONNECTED);
+        try {
+            if (transport != null) transport.close();
+        } catch (IOException e) {
+        }
+    }
+
     public void requestMessage(MessageRequest messageRequest) {
         AppLayerMessage message = messageRequest.getAppLayerMessage();
-        if (status == Status.CONNECTED
-            && !(message instanceof ActivateServiceMessage)
-            && !(message instanceof BindMessage)
-            && !(message instanceof ConnectMessage)
-            && !(message instanceof DisconnectMessage)
-            && !(message instanceof ServiceChallengeMessage)) requestWorker.requestMessage(this, messageRequest);
+        if (status == Status.CONNECTED && message.getService() != Service.CONNECTION)
+            requestWorker.requestMessage(this, messageRequest);
+    }
+
+    public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        requestWorker.setMaxInFlight(this, maxRequestsInFlight);
+    }
+
+    public void setResponseTimeout(long responseTimeout) {
+        requestWorker.setResponseTimeout(responseTimeout);
+    }
+
+    /**
+     * Fails whatever is still waiting with a {@link DisconnectedError} and releases timers and
+     * storage. Only the first call has an effect.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        receive(new DisconnectedError());
+        if (status != Status.DISCONNECTED) setStatus(Status.DISCONNECTED);
+        requestWorker.close();
+        sessionStorage.close();
+    }
+
+    public void setTransport(Transport transport) throws IOException {
+        this.transport = transport;
+        this.inputStream = transport.getInputStream();
+        this.outputStream = transport.getOutputStream();
+    }
+
+    private static class Registration<T extends Handler> {
+        private final Class<?> type;
+        private final T handler;
+
+        private Registration(Class<?> type, T handler) {
+            this.type = type;
+            this.handler = handler;
+        }
     }
 
-    public void setChannels(InputStream inputStream, OutputStream outputStream) {
-        this.inputStream = inputStream;
-        this.outputStream = outputStream;
+    private static class DispatchQueue {
+        private final ArrayDeque<Object> inbound = new ArrayDeque<>();
+        private final ArrayDeque<Object> outbound = new ArrayDeque<>();
+        private boolean draining;
+        private int sendDepth;
+        private Object sending;
     }
 }
@@ -4,7 +4,6 @@ import android.util.Log;
 
 import sugar.free.sightparser.applayer.AppLayerMessage;
 import sugar.free.sightparser.authlayer.DataMessage;
-import sugar.free.sightparser.pipeline.ByteBuf;
 import sugar.free.sightparser.pipeline.DuplexHandler;
 import sugar.free.sightparser.pipeline.Pipeline;
 
@@ -14,9 +13,7 @@ public class AppLayerProcessor implements DuplexHandler {
     public void onInboundMessage(Object message, Pipeline pipeline) throws Exception {
         if (!(message instanceof DataMessage)) return;
         DataMessage dataMessage = (DataMessage) message;
-        ByteBuf byteBuf = new ByteBuf(dataMessage.getData().length);
-        byteBuf.putBytes(dataMessage.getData());
-        AppLayerMessage appLayerMessage = AppLayerMessage.deserialize(byteBuf);
+        AppLayerMessage appLayerMessage = AppLayerMessage.deserialize(dataMessage.getData());
         Log.d("sugar.free.sightremote", "RECEIVE: " + appLayerMessage.getClass());
         pipeline.receive(appLayerMessage);
     }
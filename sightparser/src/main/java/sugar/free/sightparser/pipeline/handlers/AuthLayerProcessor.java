@@ -1,10 +1,9 @@
 package sugar.free.sightparser.pipeline.handlers;
 
-import java.math.BigInteger;
-
 import sugar.free.sightparser.authlayer.AuthLayerMessage;
 import sugar.free.sightparser.authlayer.CRCAuthLayerMessage;
 import sugar.free.sightparser.authlayer.KeyRequest;
+import sugar.free.sightparser.crypto.Nonce;
 import sugar.free.sightparser.error.InvalidAuthCRCError;
 import sugar.free.sightparser.error.InvalidNonceError;
 import sugar.free.sightparser.error.InvalidTrailerError;
@@ -23,7 +22,7 @@ public class AuthLayerProcessor implements DuplexHandler {
             if (data.size() < length + 8) return;
             try {
                 AuthLayerMessage authLayerMessage = AuthLayerMessage.deserialize(data, pipeline.getLastNonceReceived(),
-                        pipeline.getDerivedKeys() != null ? pipeline.getDerivedKeys().getIncomingKey() : null);
+                        pipeline.getDerivedKeys() != null ? pipeline.getDerivedKeys().getIncomingCipher() : null);
                 pipeline.setLastNonceReceived(authLayerMessage.getNonce());
                 pipeline.setCommID(authLayerMessage.getCommID());
                 pipeline.receive(authLayerMessage);
@@ -38,9 +37,14 @@ public class AuthLayerProcessor implements DuplexHandler {
     public void onOutboundMessage(Object message, Pipeline pipeline) throws Exception {
         if (!(message instanceof AuthLayerMessage)) return;
         AuthLayerMessage data = (AuthLayerMessage) message;
-        BigInteger nonce = pipeline.getLastNonceSent();
-        if (!(data instanceof CRCAuthLayerMessage)) nonce = nonce.add(BigInteger.ONE);
-        pipeline.send(data.serialize(nonce, (message instanceof KeyRequest) ? 1 : pipeline.getCommID(), pipeline.getDerivedKeys() != null ? pipeline.getDerivedKeys().getOutgoingKey() : null));
-        pipeline.setLastNonceSent(nonce);
+        //All sending threads share the nonce and outgoing cipher, and the pump rejects nonces that go
+        //backwards, so a frame has to be written before the next one gets its nonce
+        synchronized (this) {
+            Nonce nonce = pipeline.getLastNonceSent();
+            if (!(data instanceof CRCAuthLayerMessage)) nonce.increment();
+            pipeline.setLastNonceSent(nonce);
+            ByteBuf byteBuf = data.serialize(nonce, (message instanceof KeyRequest) ? 1 : pipeline.getCommID(), pipeline.getDerivedKeys() != null ? pipeline.getDerivedKeys().getOutgoingCipher() : null);
+            pipeline.send(byteBuf);
+        }
     }
 }
@@ -1,11 +1,18 @@
 package sugar.free.sightparser.pipeline.handlers;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import sugar.free.sightparser.error.ReceiveBufferOverflowError;
 import sugar.free.sightparser.pipeline.ByteBuf;
 import sugar.free.sightparser.pipeline.DuplexHandler;
 import sugar.free.sightparser.pipeline.Pipeline;
 
 public class ByteProcessor implements DuplexHandler {
 
+    private static final int READ_SIZE = 1024;
+    private static final int WRITE_SIZE = 110;
+
     private ByteBuf byteBuf;
 
     public ByteProcessor(ByteBuf byteBuf) {
@@ -15,17 +22,40 @@ public class ByteProcessor implements DuplexHandler {
     @Override
     public void onInboundMessage(Object message, Pipeline pipeline) throws Exception {
         if (!(message instanceof byte[])) return;
-        byteBuf.putBytes((byte[]) message);
+        byte[] bytes = (byte[]) message;
+        checkWritable(bytes.length);
+        byteBuf.putBytes(bytes);
         pipeline.receive(byteBuf);
     }
 
+    public int read(InputStream inputStream, Pipeline pipeline) throws Exception {
+        checkWritable(1);
+        int length = byteBuf.putBytes(inputStream, READ_SIZE);
+        if (length > 0) pipeline.receive(byteBuf);
+        return length;
+    }
+
+    private void checkWritable(int length) throws ReceiveBufferOverflowError {
+        if (length > byteBuf.writableBytes()) {
+            int writable = byteBuf.writableBytes();
+            byteBuf.shift(byteBuf.size());
+            throw new ReceiveBufferOverflowError(length, writable);
+        }
+    }
+
     @Override
     public void onOutboundMessage(Object message, Pipeline pipeline) throws Exception {
         if (!(message instanceof ByteBuf)) return;
         ByteBuf data = (ByteBuf) message;
-        while (data.size() > 0) {
-            pipeline.getOutputStream().write(data.readBytes(data.size() >= 110 ? 110 : data.size()));
-            pipeline.getOutputStream().flush();
+        OutputStream outputStream = pipeline.getOutputStream();
+        //Frames are sent from several threads, their chunks must not interleave
+        synchronized (outputStream) {
+            while (data.size() > 0) {
+                int length = Math.min(data.size(), WRITE_SIZE);
+                outputStream.write(data.array(), data.arrayOffset(), length);
+                data.shift(length);
+            }
+            outputStream.flush();
         }
     }
 
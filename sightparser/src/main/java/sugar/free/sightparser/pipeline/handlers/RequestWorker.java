@@ -2,17 +2,26 @@ package sugar.free.sightparser.pipeline.handlers;
 
 import android.os.RemoteException;
 
-import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
-import sugar.free.sightparser.SerializationUtils;
+import sugar.free.sightparser.Errors;
 import sugar.free.sightparser.applayer.AppLayerMessage;
 import sugar.free.sightparser.applayer.Service;
 import sugar.free.sightparser.applayer.connection.ActivateServiceMessage;
 import sugar.free.sightparser.applayer.connection.ServiceChallengeMessage;
 import sugar.free.sightparser.crypto.Cryptograph;
 import sugar.free.sightparser.error.DisconnectedError;
+import sugar.free.sightparser.error.InvalidAuthCRCError;
+import sugar.free.sightparser.error.InvalidNonceError;
+import sugar.free.sightparser.error.InvalidTrailerError;
+import sugar.free.sightparser.error.ReceiveBufferOverflowError;
+import sugar.free.sightparser.error.ResponseTimeoutError;
+import sugar.free.sightparser.error.SendFailedError;
 import sugar.free.sightparser.handling.MessageRequest;
 import sugar.free.sightparser.handling.MessageStatus;
 import sugar.free.sightparser.pipeline.DuplexHandler;
@@ -20,28 +29,43 @@ import sugar.free.sightparser.pipeline.Pipeline;
 
 public class RequestWorker implements DuplexHandler {
 
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1;
+    private static final long DEFAULT_RESPONSE_TIMEOUT = 5000;
+
     private final List<MessageRequest> messageRequests = new ArrayList<>();
+    private final List<MessageRequest> inFlight = new ArrayList<>();
+    private final Map<MessageRequest, TimerTask> timeouts = new HashMap<>();
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private long responseTimeout = DEFAULT_RESPONSE_TIMEOUT;
+    private Timer timer;
 
     @Override
     public void onInboundMessage(final Object message, Pipeline pipeline) throws Exception {
         synchronized (messageRequests) {
-            if (messageRequests.size() == 0) return;
+            if (messageRequests.size() == 0 && inFlight.size() == 0) return;
             if (message instanceof DisconnectedError) {
-                for (MessageRequest messageRequest : new ArrayList<>(messageRequests)) {
-                    sendError(messageRequest, (Exception) message);
-                    messageRequests.remove(messageRequest);
-                }
+                failAll((Exception) message);
                 return;
             }
-            MessageRequest messageRequest = messageRequests.get(0);
-            if (message instanceof Exception) {
-                sendError(messageRequest, (Exception) message);
-                messageRequests.remove(messageRequest);
+            if (isFrameError(message)) {
+                //The auth layer dropped its whole receive buffer, which may have held the responses to any of them
+                failAwaitingResponse((Exception) message);
                 requestNext(pipeline);
                 return;
             }
-            if (messageRequest.getMessageStatus() == MessageStatus.ACTIVATING_SERVICE) {
-                Service service = messageRequest.getAppLayerMessage().getService();
+            if (message instanceof Exception) {
+                //The pump answers in order, so an error belongs to the oldest request
+                MessageRequest messageRequest = null;
+                if (inFlight.size() > 0) messageRequest = inFlight.remove(0);
+                else if (isActivatingService()) messageRequest = messageRequests.remove(0);
+                if (messageRequest != null) {
+                    sendError(messageRequest, (Exception) message);
+                    requestNext(pipeline);
+                }
+                return;
+            }
+            if (inFlight.size() == 0 && isActivatingService()) {
+                Service service = messageRequests.get(0).getAppLayerMessage().getService();
                 if (message instanceof ServiceChallengeMessage) {
                     byte[] password = Cryptograph.getServicePasswordHash(service.getServicePassword(), ((ServiceChallengeMessage) message).getRandomData());
                     ActivateServiceMessage activateService = new ActivateServiceMessage();
@@ -51,75 +75,186 @@ public class RequestWorker implements DuplexHandler {
                     pipeline.send(activateService);
                 } else if (message instanceof ActivateServiceMessage) {
                     pipeline.getActivatedServices().add(service);
+                    cancelTimeout(messageRequests.get(0));
+                    messageRequests.get(0).setMessageStatus(MessageStatus.NOT_ACTIVE);
+                    requestNext(pipeline);
+                }
+            } else if (message instanceof AppLayerMessage) {
+                MessageRequest messageRequest = takeInFlight((AppLayerMessage) message);
+                if (messageRequest != null) {
+                    sendMessage(messageRequest, (AppLayerMessage) message);
                     requestNext(pipeline);
                 }
-            } else if (messageRequest.getMessageStatus() == MessageStatus.PENDING && message instanceof AppLayerMessage) {
-                sendMessage(messageRequest, (AppLayerMessage) message);
-                messageRequests.remove(messageRequest);
-                requestNext(pipeline);
             }
         }
     }
 
+    private static boolean isFrameError(Object message) {
+        return message instanceof InvalidNonceError || message instanceof InvalidAuthCRCError
+                || message instanceof InvalidTrailerError || message instanceof ReceiveBufferOverflowError;
+    }
+
+    private boolean isActivatingService() {
+        return messageRequests.size() > 0 && messageRequests.get(0).getMessageStatus() == MessageStatus.ACTIVATING_SERVICE;
+    }
+
+    private MessageRequest takeInFlight(AppLayerMessage response) {
+        for (int i = 0; i < inFlight.size(); i++) {
+            AppLayerMessage request = inFlight.get(i).getAppLayerMessage();
+            if (request.getService() == response.getService() && request.getCommand() == response.getCommand())
+                return inFlight.remove(i);
+        }
+        return null;
+    }
+
+    private void failAwaitingResponse(Exception exception) {
+        for (MessageRequest messageRequest : inFlight) sendError(messageRequest, exception);
+        inFlight.clear();
+        if (isActivatingService()) sendError(messageRequests.remove(0), exception);
+    }
+
+    private void failAll(Exception exception) {
+        for (MessageRequest messageRequest : inFlight) sendError(messageRequest, exception);
+        for (MessageRequest messageRequest : messageRequests) sendError(messageRequest, exception);
+        inFlight.clear();
+        messageRequests.clear();
+    }
+
     private void sendError(MessageRequest messageRequest, Exception exception) {
+        cancelTimeout(messageRequest);
         try {
-            messageRequest.getMessageCallback().onError(SerializationUtils.serialize((Serializable) exception));
+            messageRequest.getMessageCallback().onError(Errors.serialize(exception));
         } catch (RemoteException e) {
         }
     }
 
     private void sendMessage(MessageRequest messageRequest, AppLayerMessage message) {
+        cancelTimeout(messageRequest);
         try {
-            messageRequest.getMessageCallback().onMessage(SerializationUtils.serialize(message));
+            messageRequest.getMessageCallback().onMessage(message.getPayload());
         } catch (RemoteException e) {
         }
     }
 
+    private void scheduleTimeout(final Pipeline pipeline, final MessageRequest messageRequest) {
+        if (timer == null) timer = new Timer(true);
+        TimerTask timeout = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (messageRequests) {
+                    if (timeouts.get(messageRequest) != this) return;
+                    //The pump may still carry out the request and answer late, so the session is dropped
+                    //rather than sending the next request or mistaking the late answer for a newer one
+                    pipeline.abort();
+                    failAwaitingResponse(new ResponseTimeoutError());
+                    failAll(new DisconnectedError());
+                }
+            }
+        };
+        timeouts.put(messageRequest, timeout);
+        timer.schedule(timeout, responseTimeout);
+    }
+
+    private void cancelTimeout(MessageRequest messageRequest) {
+        TimerTask timeout = timeouts.remove(messageRequest);
+        if (timeout != null) timeout.cancel();
+    }
+
+    //Only read-only status requests are sent while others are still awaiting their response
+    private static boolean canPipeline(AppLayerMessage message) {
+        return message.getService() == Service.STATUS;
+    }
+
     private void requestNext(Pipeline pipeline) {
-        if (messageRequests.size() == 0) return;
-        MessageRequest messageRequest = messageRequests.get(0);
-        Service service = messageRequest.getAppLayerMessage().getService();
-        if (!pipeline.getActivatedServices().contains(service)) {
-            messageRequest.setMessageStatus(MessageStatus.ACTIVATING_SERVICE);
-            if (service.getServicePassword() != null) {
-                ServiceChallengeMessage serviceChallenge = new ServiceChallengeMessage();
-                serviceChallenge.setServiceID(service.getServiceID());
-                serviceChallenge.setVersion(service.getVersion());
-                pipeline.send(serviceChallenge);
-            } else {
-                ActivateServiceMessage activateService = new ActivateServiceMessage();
-                activateService.setServiceID(service.getServiceID());
-                activateService.setVersion(service.getVersion());
-                activateService.setServicePassword(new byte[16]);
-                pipeline.send(activateService);
+        while (messageRequests.size() > 0 && inFlight.size() < maxInFlight) {
+            MessageRequest messageRequest = messageRequests.get(0);
+            if (messageRequest.getMessageStatus() == MessageStatus.ACTIVATING_SERVICE) return;
+            AppLayerMessage message = messageRequest.getAppLayerMessage();
+            Service service = message.getService();
+            if (!pipeline.getActivatedServices().contains(service)) {
+                if (inFlight.size() > 0) return;
+                messageRequest.setMessageStatus(MessageStatus.ACTIVATING_SERVICE);
+                scheduleTimeout(pipeline, messageRequest);
+                if (service.getServicePassword() != null) {
+                    ServiceChallengeMessage serviceChallenge = new ServiceChallengeMessage();
+                    serviceChallenge.setServiceID(service.getServiceID());
+                    serviceChallenge.setVersion(service.getVersion());
+                    pipeline.send(serviceChallenge);
+                } else {
+                    ActivateServiceMessage activateService = new ActivateServiceMessage();
+                    activateService.setServiceID(service.getServiceID());
+                    activateService.setVersion(service.getVersion());
+                    activateService.setServicePassword(new byte[16]);
+                    pipeline.send(activateService);
+                }
+                return;
             }
-        } else {
+            if (inFlight.size() > 0 && !(canPipeline(message) && canPipeline(inFlight.get(0).getAppLayerMessage()))) return;
+            messageRequests.remove(0);
             messageRequest.setMessageStatus(MessageStatus.PENDING);
-            pipeline.send(messageRequest.getAppLayerMessage());
+            inFlight.add(messageRequest);
+            scheduleTimeout(pipeline, messageRequest);
+            pipeline.send(message);
         }
     }
 
     @Override
     public void onOutboundMessage(Object message, Pipeline pipeline) throws Exception {
         synchronized (messageRequests) {
-            if (messageRequests.size() == 0) return;
             if (message instanceof DisconnectedError) {
-                for (MessageRequest messageRequest : messageRequests) {
-                    sendError(messageRequest, (Exception) message);
-                    messageRequests.remove(messageRequest);
-                }
+                failAll((Exception) message);
                 return;
             }
-            MessageRequest messageRequest = messageRequests.get(0);
-            if (messageRequest.getMessageStatus() == MessageStatus.PENDING && message instanceof Exception)
-                sendError(messageRequest, (Exception) message);
+            if (!(message instanceof SendFailedError)) return;
+            SendFailedError sendFailedError = (SendFailedError) message;
+            Exception cause = (Exception) sendFailedError.getCause();
+            Object failedMessage = sendFailedError.getFailedMessage();
+            if (cause instanceof DisconnectedError) {
+                failAll(cause);
+                return;
+            }
+            MessageRequest messageRequest = null;
+            for (int i = 0; i < inFlight.size(); i++) {
+                if (inFlight.get(i).getAppLayerMessage() == failedMessage) {
+                    messageRequest = inFlight.remove(i);
+                    break;
+                }
+            }
+            if (messageRequest == null && isActivatingService() && (failedMessage instanceof ServiceChallengeMessage
+                    || failedMessage instanceof ActivateServiceMessage))
+                messageRequest = messageRequests.remove(0);
+            if (messageRequest != null) {
+                sendError(messageRequest, cause);
+                requestNext(pipeline);
+            }
         }
     }
 
     public void requestMessage(Pipeline pipeline, MessageRequest messageRequest) {
         synchronized (messageRequests) {
             messageRequests.add(messageRequest);
-            if (messageRequests.size() == 1) requestNext(pipeline);
+            requestNext(pipeline);
+        }
+    }
+
+    public void setMaxInFlight(Pipeline pipeline, int maxInFlight) {
+        synchronized (messageRequests) {
+            this.maxInFlight = Math.max(1, maxInFlight);
+            requestNext(pipeline);
+        }
+    }
+
+    public void setResponseTimeout(long responseTimeout) {
+        synchronized (messageRequests) {
+            this.responseTimeout = responseTimeout;
+        }
+    }
+
+    public void close() {
+        synchronized (messageRequests) {
+            timeouts.clear();
+            if (timer != null) timer.cancel();
+            timer = null;
         }
     }
 }
@@ -0,0 +1,98 @@
+package sugar.free.sightparser;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import sugar.free.sightparser.error.BolusAmountLimitExceededError;
+import sugar.free.sightparser.error.CancelledException;
+import sugar.free.sightparser.error.DisconnectedError;
+import sugar.free.sightparser.error.InvalidNonceError;
+import sugar.free.sightparser.error.NotAvailableError;
+import sugar.free.sightparser.error.PumpAlreadyInThatStateError;
+import sugar.free.sightparser.error.SightError;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ErrorsTest {
+
+    @After
+    public void restoreStackTraces() {
+        SightError.setCaptureStackTraces(BuildConfig.CAPTURE_STACK_TRACES);
+    }
+
+    @Test
+    public void pumpErrorsAreSentAsTheirCode() {
+        byte[] bytes = Errors.serialize(new NotAvailableError());
+        assertArrayEquals(new byte[] {0x01, 0x6A, 0x0C}, bytes);
+        assertSame(Errors.getError((short) 0x6A0C), Errors.deserialize(bytes));
+
+        bytes = Errors.serialize(new PumpAlreadyInThatStateError());
+        assertArrayEquals(new byte[] {0x01, (byte) 0xFC, 0x0C}, bytes);
+        assertTrue(Errors.deserialize(bytes) instanceof PumpAlreadyInThatStateError);
+
+        //The shared instance decoded on the other side encodes the same way again
+        Exception decoded = Errors.deserialize(Errors.serialize(new BolusAmountLimitExceededError()));
+        assertArrayEquals(Errors.serialize(new BolusAmountLimitExceededError()), Errors.serialize(decoded));
+    }
+
+    @Test
+    public void pumpErrorCodesMapBothWays() {
+        for (short errorCode : new short[] {0x6A0C, (short) 0x8117, 0x7E17, (short) 0xFC0C}) {
+            SightError error = Errors.getError(errorCode);
+            assertEquals(0, error.getStackTrace().length);
+            assertEquals(errorCode, Errors.getErrorCode(error));
+        }
+        assertNull(Errors.getError((short) 0x1234));
+        assertEquals(0x0000, Errors.getErrorCode(new DisconnectedError()));
+    }
+
+    @Test
+    public void disconnectsAreSentAsTheirTag() {
+        byte[] bytes = Errors.serialize(new DisconnectedError());
+        assertArrayEquals(new byte[] {0x02}, bytes);
+        assertTrue(Errors.deserialize(bytes) instanceof DisconnectedError);
+    }
+
+    @Test
+    public void otherErrorsAreJavaSerialized() {
+        InvalidNonceError error = new InvalidNonceError(new byte[] {1, 2, 3}, new byte[] {4, 5, 6});
+        byte[] bytes = Errors.serialize(error);
+        assertEquals(0x00, bytes[0]);
+        InvalidNonceError decoded = (InvalidNonceError) Errors.deserialize(bytes);
+        assertArrayEquals(error.getReceived(), decoded.getReceived());
+        assertArrayEquals(error.getExpected(), decoded.getExpected());
+
+        IOException exception = (IOException) Errors.deserialize(Errors.serialize(new IOException("Link closed")));
+        assertEquals("Link closed", exception.getMessage());
+    }
+
+    @Test
+    public void stackTracesCanBeSkipped() {
+        SightError.setCaptureStackTraces(true);
+        assertTrue(new DisconnectedError().getStackTrace().length > 0);
+        assertTrue(new CancelledException().getStackTrace().length > 0);
+
+        SightError.setCaptureStackTraces(false);
+        assertEquals(0, new DisconnectedError().getStackTrace().length);
+        assertEquals(0, new CancelledException().getStackTrace().length);
+        assertTrue(Errors.deserialize(Errors.serialize(new DisconnectedError())) instanceof DisconnectedError);
+    }
+
+    @Test
+    public void stacklessErrorsAreSmallerOnTheWire() {
+        //Errors without a code fall back to Java serialization, which carries the stack trace
+        SightError.setCaptureStackTraces(true);
+        int withStackTrace = Errors.serialize(new InvalidNonceError(new byte[13], new byte[13])).length;
+        SightError.setCaptureStackTraces(false);
+        int withoutStackTrace = Errors.serialize(new InvalidNonceError(new byte[13], new byte[13])).length;
+        assertTrue(withoutStackTrace + " < " + withStackTrace, withoutStackTrace < withStackTrace);
+        assertEquals(3, Errors.serialize(new NotAvailableError()).length);
+        assertEquals(1, Errors.serialize(new DisconnectedError()).length);
+    }
+}
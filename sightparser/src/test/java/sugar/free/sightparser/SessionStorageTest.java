@@ -0,0 +1,67 @@
+package sugar.free.sightparser;
+
+import org.junit.Test;
+
+import sugar.free.sightparser.crypto.Nonce;
+import sugar.free.sightparser.simulation.SimulatedPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionStorageTest {
+
+    @Test
+    public void restartNeverReusesANonce() {
+        for (int sent : new int[] {1, 255, 256, 257, 600}) {
+            DataStorage dataStorage = new DataStorage(new SimulatedPreferences());
+            SessionStorage sessionStorage = new SessionStorage(dataStorage);
+            Nonce nonce = sessionStorage.getLastNonceSent();
+            for (int i = 0; i < sent; i++) {
+                nonce.increment();
+                sessionStorage.setLastNonceSent(nonce);
+            }
+            //Dropped without close(), as if the process had been killed
+
+            Nonce next = new SessionStorage(dataStorage).getLastNonceSent();
+            next.increment();
+            assertTrue("after " + sent, next.compareTo(nonce) > 0);
+        }
+    }
+
+    @Test
+    public void receivedStateSurvivesClose() {
+        DataStorage dataStorage = new DataStorage(new SimulatedPreferences());
+        SessionStorage sessionStorage = new SessionStorage(dataStorage);
+        Nonce received = new Nonce();
+        received.add(1234);
+        sessionStorage.setCommID(0x1234ABCD);
+        sessionStorage.setLastNonceReceived(received);
+        sessionStorage.close();
+
+        SessionStorage reopened = new SessionStorage(dataStorage);
+        assertEquals(0x1234ABCD, reopened.getCommID());
+        assertEquals(received, reopened.getLastNonceReceived());
+    }
+
+    @Test
+    public void nothingIsWrittenAfterClose() {
+        DataStorage dataStorage = new DataStorage(new SimulatedPreferences());
+        SessionStorage sessionStorage = new SessionStorage(dataStorage);
+        sessionStorage.setCommID(1);
+        sessionStorage.close();
+        dataStorage.clear();
+
+        Nonce nonce = new Nonce();
+        nonce.add(1000);
+        sessionStorage.setCommID(2);
+        sessionStorage.setLastNonceSent(nonce);
+        sessionStorage.setLastNonceReceived(nonce);
+        sessionStorage.flush();
+        sessionStorage.close();
+        assertFalse(dataStorage.contains("COMMID"));
+        assertFalse(dataStorage.contains("LASTNONCESENT"));
+        assertNull(new SessionStorage(dataStorage).getLastNonceReceived());
+    }
+}
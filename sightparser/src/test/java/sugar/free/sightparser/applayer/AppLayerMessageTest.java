@@ -0,0 +1,257 @@
+package sugar.free.sightparser.applayer;
+
+import org.junit.Test;
+
+import sugar.free.sightparser.SerializationUtils;
+import sugar.free.sightparser.applayer.configuration.ReadConfigurationBlockMessage;
+import sugar.free.sightparser.applayer.configuration.blocks.MaxBolusAmountBlock;
+import sugar.free.sightparser.applayer.connection.ActivateServiceMessage;
+import sugar.free.sightparser.applayer.connection.BindMessage;
+import sugar.free.sightparser.applayer.connection.ConnectMessage;
+import sugar.free.sightparser.applayer.connection.DisconnectMessage;
+import sugar.free.sightparser.applayer.connection.ServiceChallengeMessage;
+import sugar.free.sightparser.applayer.remote_control.AvailableBolusesMessage;
+import sugar.free.sightparser.applayer.remote_control.BolusMessage;
+import sugar.free.sightparser.applayer.remote_control.CancelBolusMessage;
+import sugar.free.sightparser.applayer.remote_control.CancelTBRMessage;
+import sugar.free.sightparser.applayer.remote_control.ChangeTBRMessage;
+import sugar.free.sightparser.applayer.remote_control.SetPumpStatusMessage;
+import sugar.free.sightparser.applayer.remote_control.SetTBRMessage;
+import sugar.free.sightparser.applayer.status.ActiveBolusesMessage;
+import sugar.free.sightparser.applayer.status.BatteryAmountMessage;
+import sugar.free.sightparser.applayer.status.CartridgeAmountMessage;
+import sugar.free.sightparser.applayer.status.CurrentBasalMessage;
+import sugar.free.sightparser.applayer.status.CurrentTBRMessage;
+import sugar.free.sightparser.applayer.status.DateTimeMesssage;
+import sugar.free.sightparser.applayer.status.FirmwareVersionMessage;
+import sugar.free.sightparser.applayer.status.PumpStatus;
+import sugar.free.sightparser.applayer.status.PumpStatusMessage;
+import sugar.free.sightparser.applayer.status.WarrantyTimerMessage;
+import sugar.free.sightparser.crypto.Cryptograph;
+import sugar.free.sightparser.error.InvalidAppCRCError;
+import sugar.free.sightparser.error.InvalidAppVersionError;
+import sugar.free.sightparser.error.UnknownAppErrorCodeError;
+import sugar.free.sightparser.error.UnknownAppMessageError;
+import sugar.free.sightparser.error.UnknownServiceError;
+import sugar.free.sightparser.pipeline.ByteBuf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AppLayerMessageTest {
+
+    private static final AppLayerMessage[] REGISTERED = {
+            new BindMessage(), new ConnectMessage(), new DisconnectMessage(), new ServiceChallengeMessage(),
+            new ActivateServiceMessage(), new PumpStatusMessage(), new CurrentBasalMessage(),
+            new CartridgeAmountMessage(), new BatteryAmountMessage(), new CurrentTBRMessage(),
+            new ActiveBolusesMessage(), new FirmwareVersionMessage(), new WarrantyTimerMessage(),
+            new DateTimeMesssage(), new BolusMessage(), new CancelBolusMessage(), new CancelTBRMessage(),
+            new SetTBRMessage(), new ChangeTBRMessage(), new AvailableBolusesMessage(),
+            new SetPumpStatusMessage(), new ReadConfigurationBlockMessage()
+    };
+
+    @Test
+    public void serializedRequestIsSentUnchanged() throws Exception {
+        SetTBRMessage setTBR = new SetTBRMessage();
+        setTBR.setAmount((short) 150);
+        setTBR.setDuration((short) 45);
+        byte[] bytes = setTBR.serialize();
+        assertArrayEquals(new byte[] {0x20, 0x66, (byte) 0xC5, 0x18, (byte) 150, 0, 45, 0, 0x1F, 0x00}, slice(bytes, 0, 10));
+        assertEquals(12, bytes.length);
+
+        SerializedRequest request = new SerializedRequest(bytes);
+        assertSame(bytes, request.serialize());
+        assertSame(Service.REMOTE_CONTROL, request.getService());
+        assertEquals(setTBR.getCommand(), request.getCommand());
+    }
+
+    @Test
+    public void messagesWithoutDataShareTheirEncoding() throws Exception {
+        byte[] bytes = new PumpStatusMessage().serialize();
+        assertArrayEquals(new byte[] {0x20, 0x0F, (byte) 0xFC, 0x00}, bytes);
+        assertSame(bytes, new PumpStatusMessage().serialize());
+        assertSame(bytes, new SerializedRequest(bytes).serialize());
+    }
+
+    @Test
+    public void ipcCarriesTheAppLayerBytes() throws Exception {
+        //The request and response of a pump status poll as they cross the AIDL boundary
+        PumpStatusMessage request = new PumpStatusMessage();
+        byte[] response = response(Service.STATUS, (short) 0xFC00, true, (byte) 0x1F, 0x00);
+        assertEquals(4, request.serialize().length);
+        assertEquals(10, AppLayerMessage.deserialize(response).getPayload().length);
+
+        //What used to be sent instead
+        AppLayerMessage decoded = AppLayerMessage.deserialize(response);
+        assertTrue(SerializationUtils.serialize(request).length > 40 * request.serialize().length);
+        assertTrue(SerializationUtils.serialize(decoded).length > 20 * response.length);
+    }
+
+    @Test
+    public void serializedRequestRejectsForeignBytes() throws Exception {
+        try {
+            new SerializedRequest(new byte[] {0x10, 0x0F, (byte) 0xFC, 0x00});
+            fail();
+        } catch (InvalidAppVersionError e) {
+        }
+        try {
+            new SerializedRequest(new byte[] {0x20, 0x42, (byte) 0xFC, 0x00});
+            fail();
+        } catch (UnknownServiceError e) {
+        }
+    }
+
+    @Test
+    public void deserializeKeepsThePayload() throws Exception {
+        byte[] payload = response(Service.STATUS, (short) 0xFC00, true, (byte) 0x1F, 0x00);
+        AppLayerMessage message = AppLayerMessage.deserialize(payload);
+        assertTrue(message instanceof PumpStatusMessage);
+        assertSame(payload, message.getPayload());
+        assertEquals(PumpStatus.STOPPED, ((PumpStatusMessage) message).getPumpStatus());
+
+        //What a client of the SightService decodes must be what the service parsed
+        PumpStatusMessage decoded = (PumpStatusMessage) AppLayerMessage.deserialize(message.getPayload().clone());
+        assertEquals(PumpStatus.STOPPED, decoded.getPumpStatus());
+    }
+
+    @Test
+    public void deserializeChecksTheDataCRC() throws Exception {
+        byte[] payload = response(Service.STATUS, (short) 0xFC00, true, (byte) 0xE3, 0x00);
+        payload[payload.length - 1] ^= 0x01;
+        try {
+            AppLayerMessage.deserialize(payload);
+            fail();
+        } catch (InvalidAppCRCError e) {
+        }
+    }
+
+    @Test
+    public void deserializeIntoReusedMessage() throws Exception {
+        PumpStatusMessage reused = new PumpStatusMessage();
+        byte[] started = response(Service.STATUS, (short) 0xFC00, true, (byte) 0xE3, 0x00);
+        assertSame(reused, AppLayerMessage.deserialize(started, reused));
+        assertEquals(PumpStatus.STARTED, reused.getPumpStatus());
+        assertSame(started, reused.getPayload());
+
+        byte[] paused = response(Service.STATUS, (short) 0xFC00, true, (byte) 0xFC, 0x00);
+        AppLayerMessage.deserialize(paused, reused);
+        assertEquals(PumpStatus.PAUSED, reused.getPumpStatus());
+        assertSame(paused, reused.getPayload());
+    }
+
+    @Test
+    public void deserializeIntoReusedMessageRejectsOtherCommands() throws Exception {
+        byte[] battery = response(Service.STATUS, (short) 0x2503, false, 0x00, 0x00, 0x55, 0x00);
+        assertEquals(0x55, AppLayerMessage.deserialize(battery, new BatteryAmountMessage()).getBatteryAmount());
+        try {
+            AppLayerMessage.deserialize(battery, new PumpStatusMessage());
+            fail();
+        } catch (UnknownAppMessageError e) {
+        }
+    }
+
+    @Test
+    public void reusedActiveBolusesSurviveJavaSerialization() throws Exception {
+        ActiveBolusesMessage message = AppLayerMessage.deserialize(activeBoluses(150, 0), new ActiveBolusesMessage());
+        assertEquals(1.5F, message.getBolus1().getLeftoverAmount(), 0.001F);
+        assertNull(message.getBolus2());
+
+        //The decode slots are transient, the copy starts without them and decodes into new ones
+        ActiveBolusesMessage copy = (ActiveBolusesMessage) SerializationUtils.deserialize(SerializationUtils.serialize(message));
+        assertEquals(1.5F, copy.getBolus1().getLeftoverAmount(), 0.001F);
+        AppLayerMessage.deserialize(activeBoluses(0, 75), copy);
+        assertNull(copy.getBolus1());
+        assertEquals(0.75F, copy.getBolus2().getLeftoverAmount(), 0.001F);
+    }
+
+    @Test
+    public void everyRegisteredMessageIsCreatedFromItsServiceAndCommand() throws Exception {
+        for (AppLayerMessage registered : REGISTERED) {
+            //An unknown error code is reported with the class the factory created, before any data is parsed
+            byte[] payload = response(registered.getService(), registered.getCommand(), (short) 0x7FFF, false);
+            try {
+                AppLayerMessage.deserialize(payload);
+                fail(registered.getClass().getSimpleName());
+            } catch (UnknownAppErrorCodeError e) {
+                assertSame(registered.getClass(), e.getClazz());
+                assertEquals(0x7FFF, e.getError());
+            }
+        }
+    }
+
+    @Test
+    public void everyRegisteredMessageParsesAFullResponse() throws Exception {
+        for (AppLayerMessage registered : REGISTERED) {
+            //Long enough for every parse(), the firmware versions being the longest
+            ByteBuf data = new ByteBuf(160);
+            if (registered instanceof ReadConfigurationBlockMessage) data.putShort(MaxBolusAmountBlock.ID);
+            data.putBytes((byte) 0x00, data.writableBytes());
+            byte[] bytes = data.getBytes();
+            ByteBuf payload = new ByteBuf(6 + bytes.length + 2);
+            payload.putByte(AppLayerMessage.VERSION);
+            payload.putByte(registered.getService().getServiceID());
+            payload.putShort(registered.getCommand());
+            payload.putShort((short) 0x0000);
+            payload.putBytes(bytes);
+            if (registered.inCRC()) payload.putShortLE((short) Cryptograph.calculateCRC(bytes));
+            AppLayerMessage message = AppLayerMessage.deserialize(payload.getBytes());
+            assertSame(registered.getClass(), message.getClass());
+        }
+    }
+
+    @Test
+    public void unknownServicesAndCommandsAreRejected() throws Exception {
+        try {
+            AppLayerMessage.deserialize(new byte[] {0x20, 0x42, (byte) 0xFC, 0x00, 0x00, 0x00});
+            fail();
+        } catch (UnknownServiceError e) {
+            assertEquals(0x42, e.getServiceID());
+        }
+        for (Service service : new Service[] {Service.CONNECTION, Service.STATUS, Service.REMOTE_CONTROL, Service.CONFIGURATION}) {
+            try {
+                AppLayerMessage.deserialize(response(service, (short) 0x1234, (short) 0x0000, false));
+                fail(service.name());
+            } catch (UnknownAppMessageError e) {
+                assertEquals(service.getServiceID(), e.getService());
+                assertEquals(0x1234, e.getCommand());
+            }
+        }
+    }
+
+    private static byte[] activeBoluses(int... leftoverAmounts) {
+        int[] data = new int[3 * 14];
+        for (int i = 0; i < leftoverAmounts.length; i++) {
+            data[i * 14] = i + 1;
+            data[i * 14 + 10] = leftoverAmounts[i] & 0xFF;
+            data[i * 14 + 11] = leftoverAmounts[i] >> 8;
+        }
+        return response(Service.STATUS, new ActiveBolusesMessage().getCommand(), true, data);
+    }
+
+    private static byte[] response(Service service, short command, boolean crc, int... data) {
+        return response(service, command, (short) 0x0000, crc, data);
+    }
+
+    private static byte[] response(Service service, short command, short error, boolean crc, int... data) {
+        byte[] bytes = new byte[data.length];
+        for (int i = 0; i < data.length; i++) bytes[i] = (byte) data[i];
+        ByteBuf byteBuf = new ByteBuf(6 + bytes.length + (crc ? 2 : 0));
+        byteBuf.putByte(AppLayerMessage.VERSION);
+        byteBuf.putByte(service.getServiceID());
+        byteBuf.putShort(command);
+        byteBuf.putShort(error);
+        byteBuf.putBytes(bytes);
+        if (crc) byteBuf.putShortLE((short) Cryptograph.calculateCRC(bytes));
+        return byteBuf.getBytes();
+    }
+
+    private static byte[] slice(byte[] bytes, int offset, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(bytes, offset, slice, 0, length);
+        return slice;
+    }
+}
@@ -0,0 +1,146 @@
+package sugar.free.sightparser.authlayer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import sugar.free.sightparser.crypto.CCMCipher;
+import sugar.free.sightparser.crypto.Cryptograph;
+import sugar.free.sightparser.crypto.Nonce;
+import sugar.free.sightparser.error.InvalidAuthCRCError;
+import sugar.free.sightparser.error.UnknownAuthMessageError;
+import sugar.free.sightparser.pipeline.ByteBuf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class AuthLayerMessageTest {
+
+    private static final AuthLayerMessage[] REGISTERED = {
+            new ConnectionRequest(), new ConnectionResponse(), new KeyRequest(), new KeyResponse(),
+            new VerifyDisplayRequest(), new VerifyDisplayResponse(), new VerifyConfirmRequest(),
+            new VerifyConfirmResponse(), new SynRequest(), new SynAckResponse(), new ErrorMessage(),
+            new DataMessage()
+    };
+
+    //Long enough for every parse(), the key response being the longest
+    private static final byte[] DATA = new byte[288];
+
+    private final CCMCipher cipher = Cryptograph.createCipher(randomBytes(16));
+
+    @Test
+    public void everyRegisteredMessageIsCreatedFromItsCommand() throws Exception {
+        for (AuthLayerMessage registered : REGISTERED) {
+            AuthLayerMessage frame = registered instanceof CRCAuthLayerMessage ? new CRCFrame(registered.getCommand()) : new Frame(registered.getCommand());
+            Nonce nonce = new Nonce();
+            nonce.add(7);
+            AuthLayerMessage message = AuthLayerMessage.deserialize(frame.serialize(nonce, 42, cipher), null, cipher);
+            assertSame(registered.getClass(), message.getClass());
+            assertEquals(nonce, message.getNonce());
+            assertEquals(42, message.getCommID());
+        }
+    }
+
+    @Test
+    public void crcPacketsAreToldApartByTheirClass() throws Exception {
+        //A CRC packet sent with a CCM trailer instead must fail the CRC check
+        ByteBuf byteBuf = new Frame(new ConnectionResponse().getCommand()).serialize(new Nonce(), 0, cipher);
+        try {
+            AuthLayerMessage.deserialize(byteBuf, null, cipher);
+            fail();
+        } catch (InvalidAuthCRCError e) {
+        }
+
+        byte[] data = randomBytes(20);
+        ByteBuf dataFrame = new Frame(new DataMessage().getCommand(), data).serialize(new Nonce(), 0, cipher);
+        assertArrayEquals(data, ((DataMessage) AuthLayerMessage.deserialize(dataFrame, null, cipher)).getData());
+    }
+
+    @Test
+    public void unknownCommandsAreRejected() throws Exception {
+        ByteBuf byteBuf = new Frame((byte) 0x7F).serialize(new Nonce(), 0, cipher);
+        try {
+            AuthLayerMessage.deserialize(byteBuf, null, cipher);
+            fail();
+        } catch (UnknownAuthMessageError e) {
+            assertEquals(0x7F, e.getCommand());
+        }
+        assertEquals(0, byteBuf.size());
+    }
+
+    @Test
+    public void decodingDoesNotMoveTheReceiveBuffer() throws Exception {
+        //Sized like the pipeline's receive buffer, which used to be copied on every read
+        ByteBuf receiveBuffer = new ByteBuf(4096);
+        byte[][] data = {randomBytes(20), randomBytes(40)};
+        for (byte[] bytes : data) receiveBuffer.putBytes(new Frame(new DataMessage().getCommand(), bytes).serialize(new Nonce(), 0, cipher).getBytes());
+        byte[] partial = new Frame(new DataMessage().getCommand()).serialize(new Nonce(), 0, cipher).getBytes(0, 10);
+        receiveBuffer.putBytes(partial);
+        byte[] array = receiveBuffer.array();
+        int partialOffset = receiveBuffer.size() - partial.length;
+
+        int consumed = 0;
+        for (byte[] bytes : data) {
+            DataMessage message = (DataMessage) AuthLayerMessage.deserialize(receiveBuffer, null, cipher);
+            assertArrayEquals(bytes, message.getData());
+            consumed += 37 + bytes.length;
+            assertSame(array, receiveBuffer.array());
+            assertEquals(consumed, receiveBuffer.arrayOffset());
+        }
+        assertEquals(partialOffset, receiveBuffer.arrayOffset());
+        assertArrayEquals(partial, Arrays.copyOfRange(array, partialOffset, partialOffset + partial.length));
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+
+    private static class Frame extends AuthLayerMessage {
+
+        private final byte command;
+        private final byte[] data;
+
+        Frame(byte command) {
+            this(command, DATA);
+        }
+
+        Frame(byte command, byte[] data) {
+            this.command = command;
+            this.data = data;
+        }
+
+        @Override
+        protected byte getCommand() {
+            return command;
+        }
+
+        @Override
+        protected byte[] getData() {
+            return data;
+        }
+    }
+
+    private static class CRCFrame extends CRCAuthLayerMessage {
+
+        private final byte command;
+
+        CRCFrame(byte command) {
+            this.command = command;
+        }
+
+        @Override
+        protected byte getCommand() {
+            return command;
+        }
+
+        @Override
+        protected byte[] getData() {
+            return DATA;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package sugar.free.sightparser.crypto;
+
+import org.junit.Test;
+import org.spongycastle.crypto.engines.TwofishEngine;
+import org.spongycastle.crypto.modes.CCMBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import sugar.free.sightparser.pipeline.ByteBuf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class CryptographTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void ccmMatchesReferenceImplementation() throws Exception {
+        byte[] key = randomBytes(16);
+        CCMCipher cipher = Cryptograph.createCipher(key);
+        for (int length = 0; length <= 100; length++) {
+            byte[] nonce = randomBytes(13);
+            byte[] header = randomBytes(21);
+            byte[] payload = randomBytes(length);
+
+            CCMBlockCipher reference = new CCMBlockCipher(new TwofishEngine());
+            reference.init(true, new AEADParameters(new KeyParameter(key), 64, nonce, header));
+            byte[] expected = new byte[reference.getOutputSize(length)];
+            int written = reference.processBytes(payload, 0, length, expected, 0);
+            reference.doFinal(expected, written);
+
+            ByteBuf frame = new ByteBuf(length + 8);
+            frame.putBytes(payload);
+            Cryptograph.encryptCCM(ByteBuf.wrap(nonce), ByteBuf.wrap(header), frame.slice(0, length), cipher, frame);
+            assertArrayEquals("Length " + length, expected, frame.getBytes());
+        }
+    }
+
+    @Test
+    public void ccmRoundTripsAndRejectsTamperedFrames() {
+        byte[] key = randomBytes(16);
+        CCMCipher sender = Cryptograph.createCipher(key);
+        CCMCipher receiver = Cryptograph.createCipher(key);
+        for (int length = 0; length <= 100; length += 7) {
+            byte[] nonce = randomBytes(13);
+            byte[] header = randomBytes(21);
+            byte[] payload = randomBytes(length);
+
+            ByteBuf frame = new ByteBuf(length + 8);
+            frame.putBytes(payload);
+            Cryptograph.encryptCCM(ByteBuf.wrap(nonce), ByteBuf.wrap(header), frame.slice(0, length), sender, frame);
+            byte[] encrypted = frame.getBytes();
+
+            assertTrue(Cryptograph.decryptAndVerifyCCM(ByteBuf.wrap(nonce), ByteBuf.wrap(header),
+                    frame.slice(0, length), frame.slice(length, 8), receiver));
+            assertArrayEquals(payload, frame.getBytes(0, length));
+
+            byte[] tampered = Arrays.copyOf(encrypted, encrypted.length);
+            tampered[random.nextInt(tampered.length)] ^= 0x01;
+            ByteBuf tamperedFrame = ByteBuf.wrap(tampered);
+            assertFalse(Cryptograph.decryptAndVerifyCCM(ByteBuf.wrap(nonce), ByteBuf.wrap(header),
+                    tamperedFrame.slice(0, length), tamperedFrame.slice(length, 8), receiver));
+        }
+    }
+
+    @Test
+    public void derivedKeysKeepTheirCipherUntilTheKeyChanges() {
+        DerivedKeys derivedKeys = new DerivedKeys();
+        derivedKeys.setIncomingKey(randomBytes(16));
+        derivedKeys.setOutgoingKey(randomBytes(16));
+        CCMCipher incoming = derivedKeys.getIncomingCipher();
+        assertSame(incoming, derivedKeys.getIncomingCipher());
+        assertNotSame(incoming, derivedKeys.getOutgoingCipher());
+        derivedKeys.setIncomingKey(randomBytes(16));
+        assertNotSame(incoming, derivedKeys.getIncomingCipher());
+    }
+
+    @Test
+    public void reusedCipherDoesNotAllocatePerFrame() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        CCMCipher cipher = Cryptograph.createCipher(randomBytes(16));
+        ByteBuf nonce = ByteBuf.wrap(randomBytes(13));
+        ByteBuf header = ByteBuf.wrap(randomBytes(21));
+        ByteBuf payload = ByteBuf.wrap(randomBytes(100));
+        ByteBuf trailer = new ByteBuf(8);
+        for (int round = 0; round < 2; round++) {
+            //The first round warms up, only the second one is measured
+            long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 10000; i++) {
+                trailer.shift(trailer.size());
+                Cryptograph.encryptCCM(nonce, header, payload, cipher, trailer);
+                assertTrue(Cryptograph.decryptAndVerifyCCM(nonce, header, payload, trailer, cipher));
+            }
+            allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+            //A single Twofish key schedule alone allocates more than that
+            if (round == 1) assertTrue(allocated + " bytes", allocated < 1024);
+        }
+    }
+
+    @Test
+    public void crcMatchesCheckValue() {
+        assertEquals(0x6F91, Cryptograph.calculateCRC("123456789".getBytes()));
+    }
+
+    @Test
+    public void crcMatchesBytewiseLoopForShortInputs() {
+        for (int length = 0; length <= 9; length++) {
+            for (int i = 0; i < 100; i++) {
+                byte[] bytes = randomBytes(length);
+                assertEquals("Length " + length, referenceCRC(bytes, 0, length), Cryptograph.calculateCRC(bytes));
+            }
+        }
+    }
+
+    @Test
+    public void crcMatchesBytewiseLoopAtUnalignedOffsets() {
+        byte[] bytes = randomBytes(300);
+        for (int offset = 0; offset < 16; offset++) {
+            for (int length = 0; length <= bytes.length - offset; length += 13) {
+                assertEquals("Offset " + offset + " length " + length,
+                        referenceCRC(bytes, offset, length), Cryptograph.calculateCRC(bytes, offset, length));
+                assertEquals(referenceCRC(bytes, offset, length),
+                        Cryptograph.calculateCRC(ByteBuf.wrap(bytes).slice(offset, length)));
+            }
+        }
+    }
+
+    @Test
+    public void crcMatchesBytewiseLoopForRandomInputs() {
+        for (int i = 0; i < 1000; i++) {
+            byte[] bytes = randomBytes(random.nextInt(512));
+            int offset = bytes.length == 0 ? 0 : random.nextInt(bytes.length);
+            int length = random.nextInt(bytes.length - offset + 1);
+            assertEquals(referenceCRC(bytes, offset, length), Cryptograph.calculateCRC(bytes, offset, length));
+        }
+    }
+
+    private static int referenceCRC(byte[] bytes, int offset, int length) {
+        int crc = 0xffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc >>> 8) ^ CRC.table[(crc ^ bytes[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
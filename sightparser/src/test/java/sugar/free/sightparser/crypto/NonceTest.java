@@ -0,0 +1,115 @@
+package sugar.free.sightparser.crypto;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import sugar.free.sightparser.pipeline.ByteBuf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NonceTest {
+
+    private static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+
+    private final Random random = new Random(9);
+
+    @Test
+    public void incrementCarriesIntoTheHighBits() {
+        Nonce nonce = toNonce(TWO_64.subtract(BigInteger.ONE));
+        nonce.increment();
+        assertEquals(TWO_64, toBigInteger(nonce));
+        nonce.increment();
+        assertEquals(TWO_64.add(BigInteger.ONE), toBigInteger(nonce));
+
+        Nonce max = toNonce(BigInteger.ONE.shiftLeft(104).subtract(BigInteger.ONE));
+        max.increment();
+        assertTrue(max.isZero());
+    }
+
+    @Test
+    public void addCarriesIntoTheHighBits() {
+        for (long value : new long[] {1, 2, 256, Long.MAX_VALUE}) {
+            for (BigInteger start : new BigInteger[] {TWO_64.subtract(BigInteger.ONE), TWO_64.subtract(BigInteger.valueOf(2)),
+                    BigInteger.ONE.shiftLeft(63), TWO_64.multiply(BigInteger.valueOf(5)).subtract(BigInteger.TEN)}) {
+                Nonce nonce = toNonce(start);
+                nonce.add(value);
+                assertEquals(start.add(BigInteger.valueOf(value)), toBigInteger(nonce));
+            }
+        }
+    }
+
+    @Test
+    public void compareToIsUnsigned() {
+        Nonce highBitSet = toNonce(BigInteger.ONE.shiftLeft(63));
+        Nonce one = toNonce(BigInteger.ONE);
+        assertTrue(highBitSet.compareTo(one) > 0);
+        assertTrue(one.compareTo(highBitSet) < 0);
+        assertTrue(toNonce(TWO_64).compareTo(toNonce(TWO_64.subtract(BigInteger.ONE))) > 0);
+
+        for (int i = 0; i < 1000; i++) {
+            BigInteger a = randomValue();
+            BigInteger b = i % 2 == 0 ? randomValue() : a.xor(BigInteger.ONE.shiftLeft(random.nextInt(64)));
+            assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(toNonce(a).compareTo(toNonce(b))));
+        }
+        assertEquals(0, toNonce(TWO_64).compareTo(toNonce(TWO_64)));
+    }
+
+    @Test
+    public void fromByteArrayAcceptsASignByte() {
+        //BigInteger.toByteArray() prepends a zero byte once the top bit of the value would be set
+        BigInteger lowHighBit = BigInteger.ONE.shiftLeft(63);
+        assertEquals(9, lowHighBit.toByteArray().length);
+        assertEquals(lowHighBit, toBigInteger(Nonce.fromByteArray(lowHighBit.toByteArray())));
+
+        BigInteger topBit = BigInteger.ONE.shiftLeft(103).add(BigInteger.valueOf(77));
+        assertEquals(14, topBit.toByteArray().length);
+        assertEquals(topBit, toBigInteger(Nonce.fromByteArray(topBit.toByteArray())));
+
+        assertTrue(Nonce.fromByteArray(BigInteger.ZERO.toByteArray()).isZero());
+        for (int i = 0; i < 1000; i++) {
+            BigInteger value = randomValue();
+            Nonce nonce = Nonce.fromByteArray(value.toByteArray());
+            assertEquals(value, toBigInteger(nonce));
+            assertEquals(nonce, Nonce.fromByteArray(nonce.toByteArray()));
+        }
+    }
+
+    @Test
+    public void writeLEMatchesTheBigIntegerEncoding() {
+        for (int i = 0; i < 1000; i++) {
+            //The old encoding only fits 13 bytes below 2^103, where no sign byte is needed
+            BigInteger value = new BigInteger(1 + random.nextInt(103), random);
+            Nonce nonce = toNonce(value);
+            ByteBuf byteBuf = new ByteBuf(3 + Nonce.LENGTH);
+            byteBuf.putBytes((byte) 0x55, 3);
+            nonce.writeLE(byteBuf);
+            assertArrayEquals(processNonce(value), byteBuf.getBytes(3, Nonce.LENGTH));
+            assertEquals(nonce, Nonce.readLE(byteBuf, 3));
+        }
+    }
+
+    private BigInteger randomValue() {
+        return new BigInteger(104, random);
+    }
+
+    private static Nonce toNonce(BigInteger value) {
+        return Nonce.fromByteArray(value.toByteArray());
+    }
+
+    private static BigInteger toBigInteger(Nonce nonce) {
+        return new BigInteger(1, nonce.toByteArray());
+    }
+
+    //How AuthLayerMessage encoded BigInteger nonces before Nonce existed
+    private static byte[] processNonce(BigInteger nonce) {
+        byte[] bytes = nonce.toByteArray();
+        ByteBuf byteBuf = new ByteBuf(13);
+        byteBuf.putBytesLE(bytes);
+        byteBuf.putBytes((byte) 0x00, 13 - bytes.length);
+        return byteBuf.getBytes();
+    }
+}
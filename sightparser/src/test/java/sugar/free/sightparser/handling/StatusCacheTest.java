@@ -0,0 +1,144 @@
+package sugar.free.sightparser.handling;
+
+import android.os.IBinder;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import sugar.free.sightparser.Errors;
+import sugar.free.sightparser.applayer.AppLayerMessage;
+import sugar.free.sightparser.applayer.remote_control.SetPumpStatusMessage;
+import sugar.free.sightparser.applayer.status.BatteryAmountMessage;
+import sugar.free.sightparser.applayer.status.PumpStatus;
+import sugar.free.sightparser.applayer.status.PumpStatusMessage;
+import sugar.free.sightparser.error.InvalidTrailerError;
+import sugar.free.sightparser.simulation.SimulatedPump;
+import sugar.free.sightparser.simulation.SimulatedSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class StatusCacheTest {
+
+    private static final short PUMP_STATUS = new PumpStatusMessage().getCommand();
+    private static final short BATTERY_AMOUNT = new BatteryAmountMessage().getCommand();
+
+    private SimulatedPump simulatedPump = new SimulatedPump();
+    private SimulatedSession simulatedSession = new SimulatedSession(simulatedPump);
+    private StatusCache statusCache;
+
+    @After
+    public void tearDown() throws Exception {
+        simulatedSession.disconnect();
+    }
+
+    private void connect(long latencyMillis) throws Exception {
+        simulatedSession.connect(latencyMillis);
+        statusCache = new StatusCache(simulatedSession.getPipeline());
+    }
+
+    @Test
+    public void responsesExpireAfterTheirCommandsTTL() throws Exception {
+        connect(0);
+        byte[] pumpStatus = request(new PumpStatusMessage()).get();
+        byte[] battery = request(new BatteryAmountMessage()).get();
+        assertSame(pumpStatus, request(new PumpStatusMessage()).get());
+        assertEquals(1, simulatedPump.getRequestCount(PUMP_STATUS));
+
+        //The pump status lives for a second, the battery amount for thirty
+        Thread.sleep(1100);
+        request(new PumpStatusMessage()).get();
+        assertSame(battery, request(new BatteryAmountMessage()).get());
+        assertEquals(2, simulatedPump.getRequestCount(PUMP_STATUS));
+        assertEquals(1, simulatedPump.getRequestCount(BATTERY_AMOUNT));
+    }
+
+    @Test
+    public void concurrentRequestsShareOneRoundTrip() throws Exception {
+        connect(50);
+        Callback[] callbacks = new Callback[5];
+        for (int i = 0; i < callbacks.length; i++) callbacks[i] = request(new PumpStatusMessage());
+        byte[] response = callbacks[0].get();
+        for (Callback callback : callbacks) assertSame(response, callback.get());
+        assertEquals(1, simulatedPump.getRequestCount(PUMP_STATUS));
+    }
+
+    @Test
+    public void errorsAreNotCached() throws Exception {
+        connect(0);
+        request(new BatteryAmountMessage()).get();
+        simulatedPump.corruptResponses(1);
+        try {
+            request(new PumpStatusMessage()).get();
+            fail();
+        } catch (InvalidTrailerError e) {
+        }
+        assertEquals(PumpStatus.STARTED, decode(request(new PumpStatusMessage()).get()).getPumpStatus());
+        assertEquals(2, simulatedPump.getRequestCount(PUMP_STATUS));
+    }
+
+    @Test
+    public void remoteControlReplyInvalidates() throws Exception {
+        connect(0);
+        assertEquals(PumpStatus.STARTED, decode(request(new PumpStatusMessage()).get()).getPumpStatus());
+        SetPumpStatusMessage setPumpStatus = new SetPumpStatusMessage();
+        setPumpStatus.setPumpStatus(PumpStatus.STOPPED);
+        request(setPumpStatus).get();
+        assertEquals(PumpStatus.STOPPED, decode(request(new PumpStatusMessage()).get()).getPumpStatus());
+        assertEquals(2, simulatedPump.getRequestCount(PUMP_STATUS));
+    }
+
+    @Test
+    public void responseRequestedBeforeInvalidationIsNotStored() throws Exception {
+        connect(100);
+        request(new BatteryAmountMessage()).get();
+        Callback inFlight = request(new PumpStatusMessage());
+        statusCache.invalidate();
+        inFlight.get();
+        request(new PumpStatusMessage()).get();
+        assertEquals(2, simulatedPump.getRequestCount(PUMP_STATUS));
+    }
+
+    private Callback request(AppLayerMessage message) {
+        Callback callback = new Callback();
+        statusCache.requestMessage(new MessageRequest(message, callback));
+        return callback;
+    }
+
+    private static PumpStatusMessage decode(byte[] payload) throws Exception {
+        return (PumpStatusMessage) AppLayerMessage.deserialize(payload);
+    }
+
+    private static class Callback implements IMessageCallback {
+
+        private final BlockingQueue<Object> result = new ArrayBlockingQueue<>(1);
+        private Object value;
+
+        @Override
+        public void onMessage(byte[] message) {
+            result.add(message);
+        }
+
+        @Override
+        public void onError(byte[] error) {
+            result.add(Errors.deserialize(error));
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+
+        private byte[] get() throws Exception {
+            if (value == null) value = result.poll(10, TimeUnit.SECONDS);
+            if (value instanceof Exception) throw (Exception) value;
+            if (value == null) throw new IllegalStateException("No response");
+            return (byte[]) value;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package sugar.free.sightparser.handling;
+
+import android.os.IBinder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import sugar.free.sightparser.Errors;
+import sugar.free.sightparser.simulation.SimulatedPump;
+import sugar.free.sightparser.simulation.SimulatedSession;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times the status snapshot the service hands to the status screen over a link with a fixed
+ * latency, so the bounds below are counted in round trips.
+ */
+public class StatusSnapshotLatencyTest {
+
+    private static final long LATENCY = 50;
+    private static final long ROUND_TRIP = 2 * LATENCY;
+    private static final int RUNS = 3;
+
+    private SimulatedSession simulatedSession = new SimulatedSession(new SimulatedPump());
+
+    @Before
+    public void setUp() throws Exception {
+        simulatedSession.connect(LATENCY);
+        //Activates the status service, which costs round trips of its own
+        requestSnapshot();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        simulatedSession.disconnect();
+    }
+
+    @Test
+    public void oneRequestAtATimeTakesARoundTripPerResponse() throws Exception {
+        long millis = medianSnapshotMillis(1);
+        assertTrue(millis + " ms", millis >= 6 * ROUND_TRIP);
+    }
+
+    @Test
+    public void pipelinedSnapshotTakesTwoRoundTrips() throws Exception {
+        //Three requests go out at once, then the three that depend on the pump status
+        long millis = medianSnapshotMillis(4);
+        assertTrue(millis + " ms", millis >= 2 * ROUND_TRIP);
+        assertTrue(millis + " ms", millis < 4 * ROUND_TRIP);
+    }
+
+    private long medianSnapshotMillis(int maxRequestsInFlight) throws Exception {
+        simulatedSession.getPipeline().setMaxRequestsInFlight(maxRequestsInFlight);
+        long[] millis = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            requestSnapshot();
+            millis[i] = (System.nanoTime() - start) / 1000000;
+        }
+        Arrays.sort(millis);
+        return millis[RUNS / 2];
+    }
+
+    private void requestSnapshot() throws Exception {
+        final BlockingQueue<Object> result = new ArrayBlockingQueue<>(1);
+        //A fresh cache every time, so every response comes from the pump
+        new StatusSnapshot(new StatusCache(simulatedSession.getPipeline()), new IMessageCallback() {
+            @Override
+            public void onMessage(byte[] message) {
+                result.add(message);
+            }
+
+            @Override
+            public void onError(byte[] error) {
+                result.add(Errors.deserialize(error));
+            }
+
+            @Override
+            public IBinder asBinder() {
+                return null;
+            }
+        }).request();
+        Object snapshot = result.poll(10, TimeUnit.SECONDS);
+        if (snapshot instanceof Exception) throw (Exception) snapshot;
+        assertNotNull(snapshot);
+    }
+}
@@ -0,0 +1,89 @@
+package sugar.free.sightparser.handling;
+
+import android.os.IBinder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import sugar.free.sightparser.Errors;
+import sugar.free.sightparser.applayer.status.ActiveBolusesMessage;
+import sugar.free.sightparser.applayer.status.CurrentBasalMessage;
+import sugar.free.sightparser.applayer.status.CurrentTBRMessage;
+import sugar.free.sightparser.applayer.status.PumpStatus;
+import sugar.free.sightparser.handling.taskrunners.StatusTaskRunner.StatusResult;
+import sugar.free.sightparser.simulation.SimulatedPump;
+import sugar.free.sightparser.simulation.SimulatedSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class StatusSnapshotTest {
+
+    private SimulatedPump simulatedPump = new SimulatedPump();
+    private SimulatedSession simulatedSession = new SimulatedSession(simulatedPump);
+
+    @Before
+    public void setUp() throws Exception {
+        simulatedSession.connect(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        simulatedSession.disconnect();
+    }
+
+    @Test
+    public void runningPumpReportsEverything() throws Exception {
+        StatusResult statusResult = requestSnapshot();
+        assertEquals(PumpStatus.STARTED, statusResult.getPumpStatusMessage().getPumpStatus());
+        assertNotNull(statusResult.getActiveBolusesMessage());
+        assertNotNull(statusResult.getCurrentTBRMessage());
+        assertEquals(simulatedPump.getBasalName(), statusResult.getCurrentBasalMessage().getCurrentBasalName());
+        assertEquals(simulatedPump.getBatteryAmount(), statusResult.getBatteryAmountMessage().getBatteryAmount());
+        assertEquals(simulatedPump.getCartridgeAmount(), statusResult.getCartridgeAmountMessage().getCartridgeAmount(), 0.001);
+    }
+
+    @Test
+    public void stoppedPumpIsNotAskedForBolusesTBROrBasal() throws Exception {
+        simulatedPump.setPumpStatus(PumpStatus.STOPPED);
+        StatusResult statusResult = requestSnapshot();
+        assertEquals(PumpStatus.STOPPED, statusResult.getPumpStatusMessage().getPumpStatus());
+        assertNull(statusResult.getActiveBolusesMessage());
+        assertNull(statusResult.getCurrentTBRMessage());
+        assertNull(statusResult.getCurrentBasalMessage());
+        assertEquals(simulatedPump.getBatteryAmount(), statusResult.getBatteryAmountMessage().getBatteryAmount());
+        assertEquals(0, simulatedPump.getRequestCount(new ActiveBolusesMessage().getCommand()));
+        assertEquals(0, simulatedPump.getRequestCount(new CurrentTBRMessage().getCommand()));
+        assertEquals(0, simulatedPump.getRequestCount(new CurrentBasalMessage().getCommand()));
+    }
+
+    private StatusResult requestSnapshot() throws Exception {
+        final BlockingQueue<Object> result = new ArrayBlockingQueue<>(1);
+        new StatusSnapshot(new StatusCache(simulatedSession.getPipeline()), new IMessageCallback() {
+            @Override
+            public void onMessage(byte[] message) {
+                result.add(message);
+            }
+
+            @Override
+            public void onError(byte[] error) {
+                result.add(Errors.deserialize(error));
+            }
+
+            @Override
+            public IBinder asBinder() {
+                return null;
+            }
+        }).request();
+        Object snapshot = result.poll(10, TimeUnit.SECONDS);
+        if (snapshot instanceof Exception) throw (Exception) snapshot;
+        assertNotNull(snapshot);
+        return StatusResult.deserialize((byte[]) snapshot);
+    }
+}
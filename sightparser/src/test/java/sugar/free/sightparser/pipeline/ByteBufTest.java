@@ -0,0 +1,205 @@
+package sugar.free.sightparser.pipeline;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import sugar.free.sightparser.error.ReceiveBufferOverflowError;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class ByteBufTest {
+
+    @Test
+    public void gettersAreRelativeToTheFirstReadableByte() {
+        ByteBuf byteBuf = new ByteBuf(16);
+        byteBuf.putBytes(new byte[] {1, 2, 3, 4, 5, 6});
+        byteBuf.shift(2);
+        assertEquals(4, byteBuf.size());
+        assertEquals(3, byteBuf.getByte(0));
+        assertEquals(0x0506, byteBuf.getShort(2));
+        assertEquals(3, byteBuf.readByte());
+        assertArrayEquals(new byte[] {4, 5, 6}, byteBuf.getBytes());
+        assertArrayEquals(new byte[] {5, 6}, byteBuf.slice(1, 2).getBytes());
+    }
+
+    @Test
+    public void shiftDoesNotMoveTheReadableBytes() {
+        ByteBuf byteBuf = new ByteBuf(16);
+        byteBuf.putBytes(new byte[] {1, 2, 3, 4, 5, 6});
+        byte[] array = byteBuf.array();
+        byteBuf.shift(4);
+        assertSame(array, byteBuf.array());
+        assertEquals(4, byteBuf.arrayOffset());
+        assertEquals(5, array[byteBuf.arrayOffset()]);
+    }
+
+    @Test
+    public void drainingResetsBothIndices() {
+        ByteBuf byteBuf = new ByteBuf(8);
+        byteBuf.putBytes(new byte[] {1, 2, 3, 4, 5, 6});
+        byteBuf.shift(6);
+        assertEquals(0, byteBuf.size());
+        assertEquals(0, byteBuf.arrayOffset());
+        byteBuf.putBytes(new byte[] {7, 8, 9, 10, 11, 12, 13, 14});
+        assertArrayEquals(new byte[] {7, 8, 9, 10, 11, 12, 13, 14}, byteBuf.getBytes());
+    }
+
+    @Test
+    public void writesPastTheEndCompactTheUnreadTail() {
+        ByteBuf byteBuf = new ByteBuf(8);
+        byteBuf.putBytes(new byte[] {1, 2, 3, 4, 5, 6});
+        byte[] array = byteBuf.array();
+        byteBuf.shift(4);
+        byteBuf.putBytes(new byte[] {7, 8, 9, 10, 11, 12});
+        assertSame(array, byteBuf.array());
+        assertEquals(0, byteBuf.arrayOffset());
+        assertArrayEquals(new byte[] {5, 6, 7, 8, 9, 10, 11, 12}, byteBuf.getBytes());
+    }
+
+    @Test
+    public void growsUpToItsMaximumLength() {
+        ByteBuf byteBuf = new ByteBuf(4, 16);
+        byteBuf.putBytes(new byte[] {1, 2, 3, 4});
+        byteBuf.shift(1);
+        byteBuf.putBytes(new byte[] {5, 6, 7, 8, 9, 10});
+        assertEquals(9, byteBuf.size());
+        assertEquals(7, byteBuf.writableBytes());
+        assertEquals(9, byteBuf.highWaterMark());
+        assertArrayEquals(new byte[] {2, 3, 4, 5, 6, 7, 8, 9, 10}, byteBuf.getBytes());
+    }
+
+    @Test
+    public void writesPastTheMaximumLengthThrow() {
+        ByteBuf byteBuf = new ByteBuf(4, 8);
+        byteBuf.putBytes(new byte[] {1, 2, 3, 4, 5, 6});
+        try {
+            byteBuf.putInt(7);
+            fail();
+        } catch (BufferOverflowException e) {
+            ReceiveBufferOverflowError error = (ReceiveBufferOverflowError) e.getCause();
+            assertEquals(4, error.getReceived());
+            assertEquals(2, error.getWritable());
+        }
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, byteBuf.getBytes());
+    }
+
+    @Test
+    public void writesPastTheEndOfASliceThrow() {
+        byte[] array = {1, 2, 3, 4, 5, 6, 7, 8};
+        ByteBuf slice = ByteBuf.wrap(array).slice(2, 4);
+        slice.shift(1);
+        slice.putByte((byte) 9);
+        assertArrayEquals(new byte[] {4, 5, 6, 9}, slice.getBytes());
+        try {
+            slice.putShort((short) 0x0A0B);
+            fail();
+        } catch (BufferOverflowException e) {
+            assertTrue(e.getCause() instanceof ReceiveBufferOverflowError);
+        }
+        //The bytes behind the slice belong to someone else
+        assertArrayEquals(new byte[] {1, 2, 4, 5, 6, 9, 7, 8}, array);
+
+        ByteBuf wrapped = ByteBuf.wrap(new byte[] {1, 2});
+        try {
+            wrapped.putByte((byte) 3);
+            fail();
+        } catch (BufferOverflowException e) {
+        }
+    }
+
+    @Test
+    public void primitivesMatchByteBufferEncoding() {
+        Random random = new Random(4);
+        for (int i = 0; i < 1000; i++) {
+            short s = (short) random.nextInt();
+            int n = random.nextInt();
+            long l = random.nextLong();
+            float f = random.nextFloat();
+            double d = random.nextDouble();
+            for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+                boolean le = order == ByteOrder.LITTLE_ENDIAN;
+                ByteBuffer expected = ByteBuffer.allocate(26).order(order);
+                expected.putShort(s).putInt(n).putLong(l).putFloat(f).putDouble(d);
+                //Starts small and shifted so the puts also cross compaction and growth
+                ByteBuf byteBuf = new ByteBuf(4, 64);
+                byteBuf.putBytes((byte) 0, 3);
+                byteBuf.shift(3);
+                if (le) {
+                    byteBuf.putShortLE(s);
+                    byteBuf.putIntLE(n);
+                    byteBuf.putLongLE(l);
+                    byteBuf.putFloatLE(f);
+                    byteBuf.putDoubleLE(d);
+                } else {
+                    byteBuf.putShort(s);
+                    byteBuf.putInt(n);
+                    byteBuf.putLong(l);
+                    byteBuf.putFloat(f);
+                    byteBuf.putDouble(d);
+                }
+                assertArrayEquals(expected.array(), byteBuf.getBytes());
+                assertEquals(s, le ? byteBuf.readShortLE() : byteBuf.readShort());
+                assertEquals(n, le ? byteBuf.readIntLE() : byteBuf.readInt());
+                assertEquals(l, le ? byteBuf.readLongLE() : byteBuf.readLong());
+                assertEquals(f, le ? byteBuf.readFloatLE() : byteBuf.readFloat(), 0);
+                assertEquals(d, le ? byteBuf.readDoubleLE() : byteBuf.readDouble(), 0);
+                assertEquals(0, byteBuf.size());
+            }
+        }
+    }
+
+    @Test
+    public void primitivePutsAndReadsDoNotAllocate() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        ByteBuf byteBuf = new ByteBuf(64);
+        long sum = 0;
+        for (int round = 0; round < 2; round++) {
+            //The first round warms up, only the second one is measured
+            long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 100000; i++) sum += putAndReadPrimitives(byteBuf, i);
+            allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+            if (round == 1) assertTrue(allocated + " bytes", allocated < 1024);
+        }
+        assertTrue(sum != 0);
+    }
+
+    private static long putAndReadPrimitives(ByteBuf byteBuf, int i) {
+        byteBuf.putShort((short) i);
+        byteBuf.putShortLE((short) i);
+        byteBuf.putInt(i);
+        byteBuf.putIntLE(i);
+        byteBuf.putLong(i);
+        byteBuf.putLongLE(i);
+        byteBuf.putFloat(i);
+        byteBuf.putFloatLE(i);
+        byteBuf.putDouble(i);
+        byteBuf.putDoubleLE(i);
+        return byteBuf.readShort() + byteBuf.readShortLE() + byteBuf.readInt() + byteBuf.readIntLE()
+                + byteBuf.readLong() + byteBuf.readLongLE() + (long) byteBuf.readFloat() + (long) byteBuf.readFloatLE()
+                + (long) byteBuf.readDouble() + (long) byteBuf.readDoubleLE();
+    }
+
+    @Test
+    public void bulkPutsMatchTheirByteLayout() {
+        ByteBuf byteBuf = new ByteBuf(2, 16);
+        byteBuf.putBytes((byte) 7, 3);
+        byteBuf.putBytesLE(new byte[] {1, 2, 3});
+        byteBuf.putBytes(new byte[] {4, 5, 6}, 2);
+        byteBuf.putBoolean(true);
+        assertArrayEquals(new byte[] {7, 7, 7, 3, 2, 1, 4, 5, 0x4B, 0x00}, byteBuf.getBytes());
+        assertTrue(byteBuf.getBoolean(8));
+        assertArrayEquals(new byte[] {1, 2}, byteBuf.getBytesLE(4, 2));
+    }
+}
@@ -0,0 +1,133 @@
+package sugar.free.sightparser.pipeline;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sugar.free.sightparser.DataStorage;
+import sugar.free.sightparser.applayer.AppLayerMessage;
+import sugar.free.sightparser.applayer.remote_control.SetPumpStatusMessage;
+import sugar.free.sightparser.applayer.status.BatteryAmountMessage;
+import sugar.free.sightparser.applayer.status.CartridgeAmountMessage;
+import sugar.free.sightparser.applayer.status.PumpStatus;
+import sugar.free.sightparser.applayer.status.PumpStatusMessage;
+import sugar.free.sightparser.error.DisconnectedError;
+import sugar.free.sightparser.error.PumpAlreadyInThatStateError;
+import sugar.free.sightparser.handling.MessageCallback;
+import sugar.free.sightparser.handling.MessageRequest;
+import sugar.free.sightparser.handling.StatusCallback;
+import sugar.free.sightparser.simulation.SimulatedPump;
+import sugar.free.sightparser.simulation.SimulatedSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PipelineTest {
+
+    private SimulatedPump simulatedPump;
+    private SimulatedSession simulatedSession;
+    private final AtomicInteger disconnectedErrors = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        simulatedPump = new SimulatedPump();
+        simulatedSession = new SimulatedSession(simulatedPump) {
+            @Override
+            protected Pipeline createPipeline(DataStorage dataStorage, StatusCallback statusCallback) {
+                return new Pipeline(dataStorage, statusCallback) {
+                    @Override
+                    public void receive(Object message) {
+                        if (message instanceof DisconnectedError) disconnectedErrors.incrementAndGet();
+                        super.receive(message);
+                    }
+                };
+            }
+        };
+        simulatedSession.connect(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        simulatedSession.disconnect();
+    }
+
+    @Test
+    public void responsesPassThroughEveryLayer() throws Exception {
+        PumpStatusMessage pumpStatus = simulatedSession.request(new PumpStatusMessage());
+        assertEquals(PumpStatus.STARTED, pumpStatus.getPumpStatus());
+        BatteryAmountMessage batteryAmount = simulatedSession.request(new BatteryAmountMessage());
+        assertEquals(simulatedPump.getBatteryAmount(), batteryAmount.getBatteryAmount());
+        CartridgeAmountMessage cartridgeAmount = simulatedSession.request(new CartridgeAmountMessage());
+        assertEquals(simulatedPump.getCartridgeAmount(), cartridgeAmount.getCartridgeAmount(), 0.001);
+    }
+
+    @Test
+    public void handlerErrorsReachTheRequest() throws Exception {
+        SetPumpStatusMessage setPumpStatus = new SetPumpStatusMessage();
+        setPumpStatus.setPumpStatus(PumpStatus.STARTED);
+        try {
+            simulatedSession.request(setPumpStatus);
+            fail();
+        } catch (PumpAlreadyInThatStateError e) {
+        }
+        PumpStatusMessage pumpStatus = simulatedSession.request(new PumpStatusMessage());
+        assertEquals(PumpStatus.STARTED, pumpStatus.getPumpStatus());
+    }
+
+    @Test
+    public void reconnectsWithStoredKeys() throws Exception {
+        simulatedSession.disconnect();
+        simulatedSession.connect(0);
+        PumpStatusMessage pumpStatus = simulatedSession.request(new PumpStatusMessage());
+        assertEquals(PumpStatus.STARTED, pumpStatus.getPumpStatus());
+    }
+
+    @Test
+    public void layersAreDispatchedWithoutRecursion() throws Exception {
+        final BlockingQueue<StackTraceElement[]> stackTraces = new ArrayBlockingQueue<>(1);
+        simulatedSession.getPipeline().requestMessage(new MessageRequest(new PumpStatusMessage(), new MessageCallback() {
+            @Override
+            public void onMessage(AppLayerMessage message) {
+                stackTraces.add(Thread.currentThread().getStackTrace());
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        }));
+        StackTraceElement[] stackTrace = stackTraces.poll(10, TimeUnit.SECONDS);
+        assertNotNull(stackTrace);
+        //The frame went through the byte, auth and app layers, each handing its result back to the pipeline
+        int receives = 0;
+        int dispatches = 0;
+        for (StackTraceElement element : stackTrace) {
+            if (!element.getClassName().equals(Pipeline.class.getName())) continue;
+            if (element.getMethodName().equals("receive")) receives++;
+            if (element.getMethodName().equals("dispatchInbound")) dispatches++;
+        }
+        assertEquals(1, receives);
+        assertEquals(1, dispatches);
+    }
+
+    @Test
+    public void interruptWakesTheBlockedRead() throws Exception {
+        //The reader thread is idle in read(), which does not return on an interrupt alone, and
+        //the pump never answers the disconnect, so only closing the transport can end the read
+        simulatedSession.request(new PumpStatusMessage());
+        simulatedPump.dropResponses(1);
+        Thread.sleep(100);
+        assertTrue("Still blocked in read()", simulatedSession.interrupt());
+        assertEquals(Status.DISCONNECTED, simulatedSession.getPipeline().getStatus());
+        assertEquals(1, disconnectedErrors.get());
+
+        simulatedSession.getPipeline().close();
+        assertEquals(1, disconnectedErrors.get());
+    }
+}
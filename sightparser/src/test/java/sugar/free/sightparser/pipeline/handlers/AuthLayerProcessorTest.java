@@ -0,0 +1,95 @@
+package sugar.free.sightparser.pipeline.handlers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import sugar.free.sightparser.DataStorage;
+import sugar.free.sightparser.authlayer.DataMessage;
+import sugar.free.sightparser.crypto.DerivedKeys;
+import sugar.free.sightparser.crypto.Nonce;
+import sugar.free.sightparser.handling.StatusCallback;
+import sugar.free.sightparser.pipeline.ByteBuf;
+import sugar.free.sightparser.pipeline.Pipeline;
+import sugar.free.sightparser.pipeline.Status;
+import sugar.free.sightparser.pipeline.Transport;
+import sugar.free.sightparser.simulation.SimulatedPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AuthLayerProcessorTest {
+
+    private static final int THREADS = 8;
+    private static final int FRAMES_PER_THREAD = 500;
+
+    @Test
+    public void concurrentFramesAreWrittenInNonceOrder() throws Exception {
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        final Pipeline pipeline = new Pipeline(new DataStorage(new SimulatedPreferences()), new StatusCallback() {
+            @Override
+            public void onStatusChange(Status status) {
+            }
+        });
+        Random random = new Random(1);
+        byte[] incomingKey = new byte[16];
+        byte[] outgoingKey = new byte[16];
+        random.nextBytes(incomingKey);
+        random.nextBytes(outgoingKey);
+        DerivedKeys derivedKeys = new DerivedKeys();
+        derivedKeys.setIncomingKey(incomingKey);
+        derivedKeys.setOutgoingKey(outgoingKey);
+        pipeline.setDerivedKeys(derivedKeys);
+        pipeline.setTransport(new Transport() {
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return null;
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return wire;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < FRAMES_PER_THREAD; j++) {
+                        DataMessage dataMessage = new DataMessage();
+                        dataMessage.setData(new byte[16]);
+                        pipeline.send(dataMessage);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        ByteBuf frames = ByteBuf.wrap(wire.toByteArray());
+        Nonce previous = null;
+        int count = 0;
+        while (frames.size() > 0) {
+            Nonce nonce = Nonce.readLE(frames, 16);
+            if (previous != null) assertTrue("Nonce went backwards on the wire", nonce.compareTo(previous) > 0);
+            previous = nonce;
+            frames.shift(frames.getShortLE(4) + 8);
+            count++;
+        }
+        assertEquals(THREADS * FRAMES_PER_THREAD, count);
+        pipeline.close();
+    }
+}
@@ -0,0 +1,232 @@
+package sugar.free.sightparser.pipeline.handlers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import sugar.free.sightparser.DataStorage;
+import sugar.free.sightparser.error.ReceiveBufferOverflowError;
+import sugar.free.sightparser.handling.StatusCallback;
+import sugar.free.sightparser.pipeline.ByteBuf;
+import sugar.free.sightparser.pipeline.Pipeline;
+import sugar.free.sightparser.pipeline.Status;
+import sugar.free.sightparser.pipeline.Transport;
+import sugar.free.sightparser.simulation.SimulatedPreferences;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ByteProcessorTest {
+
+    private static final int FLUSH = -1;
+
+    private Pipeline pipeline;
+
+    @Before
+    public void setUp() {
+        pipeline = new Pipeline(new DataStorage(new SimulatedPreferences()), new StatusCallback() {
+            @Override
+            public void onStatusChange(Status status) {
+            }
+        });
+    }
+
+    @Test
+    public void readsStraightIntoTheReceiveBuffer() throws Exception {
+        ByteBuf byteBuf = new ByteBuf(64);
+        ByteProcessor byteProcessor = new ByteProcessor(byteBuf);
+        RecordingInputStream inputStream = new RecordingInputStream(new byte[] {1, 2, 3, 4, 5});
+
+        assertEquals(5, byteProcessor.read(inputStream, pipeline));
+        assertSame(byteBuf.array(), inputStream.lastArray);
+        assertEquals(0, inputStream.lastOffset);
+
+        inputStream.data = new byte[] {6, 7, 8};
+        assertEquals(3, byteProcessor.read(inputStream, pipeline));
+        assertSame(byteBuf.array(), inputStream.lastArray);
+        assertEquals(5, inputStream.lastOffset);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, byteBuf.getBytes());
+    }
+
+    @Test
+    public void compactsInPlaceBeforeReading() throws Exception {
+        ByteBuf byteBuf = new ByteBuf(8);
+        ByteProcessor byteProcessor = new ByteProcessor(byteBuf);
+        RecordingInputStream inputStream = new RecordingInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        byteProcessor.read(inputStream, pipeline);
+        byte[] array = byteBuf.array();
+        byteBuf.shift(6);
+
+        inputStream.data = new byte[] {9, 10, 11, 12};
+        assertEquals(4, byteProcessor.read(inputStream, pipeline));
+        assertSame(array, byteBuf.array());
+        assertSame(array, inputStream.lastArray);
+        assertEquals(2, inputStream.lastOffset);
+        assertArrayEquals(new byte[] {7, 8, 9, 10, 11, 12}, byteBuf.getBytes());
+    }
+
+    @Test
+    public void dropsTheBufferWhenItIsFull() throws Exception {
+        ByteBuf byteBuf = new ByteBuf(4);
+        ByteProcessor byteProcessor = new ByteProcessor(byteBuf);
+        byteProcessor.read(new RecordingInputStream(new byte[] {1, 2, 3, 4}), pipeline);
+        try {
+            byteProcessor.read(new RecordingInputStream(new byte[] {5}), pipeline);
+            fail();
+        } catch (ReceiveBufferOverflowError e) {
+            assertEquals(0, byteBuf.size());
+        }
+    }
+
+    @Test
+    public void writesFramesInChunksWithOneFlush() throws Exception {
+        RecordingOutputStream outputStream = new RecordingOutputStream();
+        pipeline.setTransport(new RecordingTransport(outputStream));
+        ByteProcessor byteProcessor = new ByteProcessor(new ByteBuf(16));
+
+        byte[] frame = new byte[250];
+        for (int i = 0; i < frame.length; i++) frame[i] = (byte) i;
+        byteProcessor.onOutboundMessage(ByteBuf.wrap(frame), pipeline);
+        assertEquals(Arrays.asList(110, 110, 30, FLUSH), outputStream.events);
+        assertArrayEquals(frame, outputStream.written.toByteArray());
+
+        outputStream.events.clear();
+        byteProcessor.onOutboundMessage(ByteBuf.wrap(new byte[110]), pipeline);
+        assertEquals(Arrays.asList(110, FLUSH), outputStream.events);
+    }
+
+    @Test
+    public void concurrentFramesDoNotInterleave() throws Exception {
+        final RecordingOutputStream outputStream = new RecordingOutputStream();
+        pipeline.setTransport(new RecordingTransport(outputStream));
+        final ByteProcessor byteProcessor = new ByteProcessor(new ByteBuf(16));
+        final int frames = 200;
+        final int frameLength = 250;
+        Thread[] senders = new Thread[2];
+        final Exception[] failure = new Exception[1];
+        for (int i = 0; i < senders.length; i++) {
+            final byte sender = (byte) (i + 1);
+            senders[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < frames; j++) {
+                            byte[] frame = new byte[frameLength];
+                            Arrays.fill(frame, sender);
+                            byteProcessor.onOutboundMessage(ByteBuf.wrap(frame), pipeline);
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+        }
+        for (Thread thread : senders) thread.start();
+        for (Thread thread : senders) thread.join();
+        if (failure[0] != null) throw failure[0];
+
+        //Between two flushes there must be exactly one frame, written by one sender
+        byte[] written = outputStream.written.toByteArray();
+        int offset = 0;
+        int flushes = 0;
+        int frameStart = 0;
+        for (int event : outputStream.events) {
+            if (event == FLUSH) {
+                assertEquals(frameLength, offset - frameStart);
+                for (int i = frameStart; i < offset; i++) assertEquals(written[frameStart], written[i]);
+                frameStart = offset;
+                flushes++;
+            } else offset += event;
+        }
+        assertEquals(senders.length * frames, flushes);
+        assertEquals(written.length, offset);
+    }
+
+    private static class RecordingOutputStream extends OutputStream {
+
+        private final List<Integer> events = new ArrayList<>();
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) {
+            throw new AssertionError("Single byte writes are not expected");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            synchronized (events) {
+                events.add(len);
+                written.write(b, off, len);
+            }
+            //Gives the other sender a chance to cut in between two chunks
+            Thread.yield();
+        }
+
+        @Override
+        public void flush() {
+            synchronized (events) {
+                events.add(FLUSH);
+            }
+        }
+    }
+
+    private static class RecordingTransport implements Transport {
+
+        private final OutputStream outputStream;
+
+        private RecordingTransport(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class RecordingInputStream extends InputStream {
+
+        private byte[] data;
+        private byte[] lastArray;
+        private int lastOffset;
+
+        private RecordingInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            throw new AssertionError("Single byte reads are not expected");
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            lastArray = b;
+            lastOffset = off;
+            int length = Math.min(len, data.length);
+            System.arraycopy(data, 0, b, off, length);
+            return length;
+        }
+    }
+}
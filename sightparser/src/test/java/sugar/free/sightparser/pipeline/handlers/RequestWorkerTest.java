@@ -0,0 +1,133 @@
+package sugar.free.sightparser.pipeline.handlers;
+
+import org.junit.After;
+import org.junit.Test;
+
+import sugar.free.sightparser.applayer.AppLayerMessage;
+import sugar.free.sightparser.applayer.Service;
+import sugar.free.sightparser.applayer.remote_control.AvailableBolusesMessage;
+import sugar.free.sightparser.applayer.remote_control.SetPumpStatusMessage;
+import sugar.free.sightparser.applayer.status.BatteryAmountMessage;
+import sugar.free.sightparser.applayer.status.CartridgeAmountMessage;
+import sugar.free.sightparser.applayer.status.PumpStatus;
+import sugar.free.sightparser.applayer.status.PumpStatusMessage;
+import sugar.free.sightparser.error.DisconnectedError;
+import sugar.free.sightparser.error.InvalidTrailerError;
+import sugar.free.sightparser.error.ResponseTimeoutError;
+import sugar.free.sightparser.pipeline.Status;
+import sugar.free.sightparser.simulation.SimulatedPump;
+import sugar.free.sightparser.simulation.SimulatedSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class RequestWorkerTest {
+
+    private SimulatedPump simulatedPump = new SimulatedPump();
+    private SimulatedSession simulatedSession = new SimulatedSession(simulatedPump);
+
+    @After
+    public void tearDown() throws Exception {
+        simulatedSession.disconnect();
+    }
+
+    @Test
+    public void frameErrorFailsEveryRequestInFlight() throws Exception {
+        simulatedSession.connect(50);
+        simulatedSession.getPipeline().setMaxRequestsInFlight(3);
+        simulatedSession.request(new PumpStatusMessage());
+        simulatedPump.corruptResponses(1);
+        SimulatedSession.Response[] responses = {
+                simulatedSession.submit(new PumpStatusMessage()),
+                simulatedSession.submit(new BatteryAmountMessage()),
+                simulatedSession.submit(new CartridgeAmountMessage())
+        };
+        for (SimulatedSession.Response response : responses) {
+            try {
+                response.get();
+                fail();
+            } catch (InvalidTrailerError e) {
+            }
+        }
+        assertNotNull(simulatedSession.request(new AvailableBolusesMessage()));
+    }
+
+    @Test
+    public void unansweredRequestTimesOut() throws Exception {
+        simulatedSession.connect(0);
+        simulatedSession.getPipeline().setResponseTimeout(300);
+        simulatedPump.dropResponses(1);
+        try {
+            simulatedSession.request(new PumpStatusMessage());
+            fail();
+        } catch (ResponseTimeoutError e) {
+        }
+        assertEquals(Status.DISCONNECTED, simulatedSession.getPipeline().getStatus());
+        simulatedSession.disconnect();
+        simulatedSession.connect(0);
+        assertNotNull(simulatedSession.request(new AvailableBolusesMessage()));
+    }
+
+    @Test
+    public void lateResponseIsNotTakenForTheNextRequest() throws Exception {
+        simulatedSession.connect(0);
+        simulatedSession.getPipeline().setResponseTimeout(300);
+        simulatedSession.request(new AvailableBolusesMessage());
+        simulatedPump.delayResponses(1, 600);
+        SetPumpStatusMessage stop = new SetPumpStatusMessage();
+        stop.setPumpStatus(PumpStatus.STOPPED);
+        SetPumpStatusMessage start = new SetPumpStatusMessage();
+        start.setPumpStatus(PumpStatus.STARTED);
+        SimulatedSession.Response timedOut = simulatedSession.submit(stop);
+        SimulatedSession.Response next = simulatedSession.submit(start);
+        try {
+            timedOut.get();
+            fail();
+        } catch (ResponseTimeoutError e) {
+        }
+        try {
+            next.get();
+            fail();
+        } catch (DisconnectedError e) {
+        }
+        assertEquals(1, simulatedPump.getRequestCount((short) 0x2618));
+    }
+
+    @Test
+    public void sendFailureFailsTheRequestBeingSent() throws Exception {
+        simulatedSession.connect(20);
+        simulatedSession.getPipeline().setMaxRequestsInFlight(3);
+        simulatedSession.request(new PumpStatusMessage());
+        //Both status requests queue behind the remote control one and are sent together once it is answered
+        SimulatedSession.Response availableBoluses = simulatedSession.submit(new AvailableBolusesMessage());
+        SimulatedSession.Response unserializable = simulatedSession.submit(new UnserializableStatusMessage());
+        SimulatedSession.Response pumpStatus = simulatedSession.submit(new PumpStatusMessage());
+        assertNotNull(availableBoluses.get());
+        try {
+            unserializable.get();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Not serializable", e.getMessage());
+        }
+        assertEquals(PumpStatus.STARTED, pumpStatus.<PumpStatusMessage>get().getPumpStatus());
+    }
+
+    private static class UnserializableStatusMessage extends AppLayerMessage {
+
+        @Override
+        public Service getService() {
+            return Service.STATUS;
+        }
+
+        @Override
+        public short getCommand() {
+            return (short) 0xFC00;
+        }
+
+        @Override
+        protected byte[] getData() {
+            throw new IllegalStateException("Not serializable");
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package sugar.free.sightparser.simulation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * One direction of a simulated connection. Every write becomes readable on the other end once
+ * the configured latency has passed, so a write of one frame arrives as one chunk like it
+ * would over RFCOMM.
+ */
+public class SimulatedLink {
+
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private final long latencyNanos;
+    private boolean closed;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return SimulatedLink.this.read(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            SimulatedLink.this.close();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            SimulatedLink.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            SimulatedLink.this.close();
+        }
+    };
+
+    public SimulatedLink(long latencyMillis) {
+        this.latencyNanos = latencyMillis * 1000000L;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Link closed");
+        if (len == 0) return;
+        byte[] data = new byte[len];
+        System.arraycopy(b, off, data, 0, len);
+        chunks.add(new Chunk(data, System.nanoTime() + latencyNanos));
+        notifyAll();
+    }
+
+    //Like an RFCOMM socket, a blocked read ignores interrupts and only returns once data arrives or the link is closed
+    private synchronized int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                Chunk chunk = chunks.peek();
+                if (closed && chunk == null) return -1;
+                long wait = chunk == null ? 0 : chunk.deliverAt - System.nanoTime();
+                if (chunk != null && wait <= 0) break;
+                try {
+                    if (chunk == null) wait();
+                    else wait(wait / 1000000L, (int) (wait % 1000000L));
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        int read = 0;
+        Chunk chunk;
+        while (read < len && (chunk = chunks.peek()) != null && chunk.deliverAt <= System.nanoTime()) {
+            int length = Math.min(len - read, chunk.data.length - chunk.position);
+            System.arraycopy(chunk.data, chunk.position, b, off + read, length);
+            chunk.position += length;
+            read += length;
+            if (chunk.position == chunk.data.length) chunks.poll();
+        }
+        return read;
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        private final long deliverAt;
+        private int position;
+
+        private Chunk(byte[] data, long deliverAt) {
+            this.data = data;
+            this.deliverAt = deliverAt;
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package sugar.free.sightparser.simulation;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.encodings.OAEPEncoding;
+import org.spongycastle.crypto.engines.RSAEngine;
+import org.spongycastle.crypto.params.RSAKeyParameters;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.Getter;
+import lombok.Setter;
+import sugar.free.sightparser.applayer.Service;
+import sugar.free.sightparser.applayer.configuration.RestrictionLevel;
+import sugar.free.sightparser.applayer.configuration.blocks.FactoryMaxBolusAmountBlock;
+import sugar.free.sightparser.applayer.configuration.blocks.FactoryMinBolusAmountBlock;
+import sugar.free.sightparser.applayer.configuration.blocks.MaxBolusAmountBlock;
+import sugar.free.sightparser.applayer.status.BolusType;
+import sugar.free.sightparser.applayer.status.PumpStatus;
+import sugar.free.sightparser.authlayer.PairingStatus;
+import sugar.free.sightparser.crypto.Cryptograph;
+import sugar.free.sightparser.crypto.DerivedKeys;
+import sugar.free.sightparser.crypto.Nonce;
+import sugar.free.sightparser.pipeline.ByteBuf;
+
+/**
+ * In-process stand-in for the pump. It answers pairing, SYN, service activation and the status,
+ * bolus, TBR and configuration requests of the app layer, so the parser can be run against it
+ * through a {@link SimulatedTransport} without a device.
+ */
+public class SimulatedPump implements Runnable {
+
+    private static final byte[] MAGIC_HEADER = Hex.decode("88CCEEFF");
+    private static final byte VERSION = 0x20;
+    private static final int READ_SIZE = 1024;
+    private static final Charset UTF16LE = Charset.forName("UTF-16LE");
+
+    private static final byte CONNECTION_REQUEST = 0x09;
+    private static final byte CONNECTION_RESPONSE = 0x0A;
+    private static final byte KEY_REQUEST = 0x0C;
+    private static final byte KEY_RESPONSE = 0x11;
+    private static final byte VERIFY_DISPLAY_REQUEST = 0x12;
+    private static final byte VERIFY_DISPLAY_RESPONSE = 0x14;
+    private static final byte VERIFY_CONFIRM_REQUEST = 0x0E;
+    private static final byte VERIFY_CONFIRM_RESPONSE = 0x1E;
+    private static final byte SYN_REQUEST = 0x17;
+    private static final byte SYN_ACK_RESPONSE = 0x18;
+    private static final byte DISCONNECT_REQUEST = 0x1B;
+    private static final byte DATA = 0x03;
+
+    private static final short NO_ERROR = 0x0000;
+    private static final short NOT_AVAILABLE = 0x6A0C;
+    private static final short BOLUS_AMOUNT_LIMIT_EXCEEDED = (short) 0x8117;
+    private static final short ALREADY_IN_THAT_STATE = (short) 0xFC0C;
+    private static final short BOLUS_AVAILABLE = 0x4B00;
+
+    private static final int ACTIVE_BOLUS_SLOTS = 3;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private DerivedKeys derivedKeys;
+    private int commID;
+    private final Nonce nonce = new Nonce();
+    private byte[] serviceChallenge;
+    private final Set<Byte> activatedServices = new HashSet<>();
+    private final List<Bolus> activeBoluses = new ArrayList<>();
+    private short nextBolusID = 1;
+
+    private InputStream inputStream;
+    private OutputStream outputStream;
+    private Thread thread;
+
+    @Getter
+    @Setter
+    private PumpStatus pumpStatus = PumpStatus.STARTED;
+    @Getter
+    @Setter
+    private int batteryAmount = 80;
+    @Getter
+    @Setter
+    private float cartridgeAmount = 160F;
+    @Getter
+    @Setter
+    private String basalName = "Profile 1";
+    @Getter
+    @Setter
+    private float basalAmount = 0.8F;
+    @Getter
+    @Setter
+    private float maxBolusAmount = 25F;
+    @Getter
+    private int tbrPercentage = 100;
+    @Getter
+    private int tbrDuration = 0;
+    private long tbrStart;
+    @Getter
+    private float deliveredBolusAmount = 0;
+    private int responsesToDrop;
+    private int responsesToCorrupt;
+    private int responsesToDelay;
+    private long responseDelay;
+    private final Map<Short, Integer> requestCounts = new HashMap<>();
+
+    public synchronized void start(InputStream inputStream, OutputStream outputStream) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        activatedServices.clear();
+        thread = new Thread(this, "SimulatedPump");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * How often an app layer command has been received since the pump was created.
+     */
+    public synchronized int getRequestCount(short command) {
+        Integer count = requestCounts.get(command);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * The next app layer responses are not sent at all, like frames lost on the link.
+     */
+    public synchronized void dropResponses(int count) {
+        responsesToDrop = count;
+    }
+
+    /**
+     * The next app layer responses are sent only after the given delay, like a pump busy with
+     * carrying out the request.
+     */
+    public synchronized void delayResponses(int count, long delayMillis) {
+        responsesToDelay = count;
+        responseDelay = delayMillis;
+    }
+
+    /**
+     * The next app layer responses are sent with a broken CCM trailer.
+     */
+    public synchronized void corruptResponses(int count) {
+        responsesToCorrupt = count;
+    }
+
+    @Override
+    public void run() {
+        ByteBuf byteBuf = new ByteBuf(READ_SIZE * 4, READ_SIZE * 64);
+        try {
+            while (byteBuf.putBytes(inputStream, READ_SIZE) != -1) {
+                while (byteBuf.size() >= 37) {
+                    int length = byteBuf.getShortLE(4);
+                    if (byteBuf.size() < length + 8) break;
+                    ByteBuf frame = ByteBuf.wrap(byteBuf.readBytes(length + 8));
+                    synchronized (this) {
+                        onFrame(frame);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void onFrame(ByteBuf frame) throws Exception {
+        byte command = frame.getByte(9);
+        int dataLength = frame.getShortLE(10);
+        ByteBuf payload = frame.slice(29, dataLength);
+        if (command == CONNECTION_REQUEST || command == KEY_REQUEST) {
+            short crc = payload.getShortLE(dataLength - 2);
+            if (crc != (short) Cryptograph.calculateCRC(frame.slice(8, dataLength + 19))) return;
+        } else if (derivedKeys == null || !Cryptograph.decryptAndVerifyCCM(frame.slice(16, 13), frame.slice(8, 21),
+                payload, frame.slice(29 + dataLength, 8), derivedKeys.getIncomingCipher())) return;
+        switch (command) {
+            case CONNECTION_REQUEST:
+                derivedKeys = null;
+                sendFrame(CONNECTION_RESPONSE, new byte[0], true);
+                break;
+            case KEY_REQUEST:
+                onKeyRequest(payload);
+                break;
+            case VERIFY_DISPLAY_REQUEST:
+                sendFrame(VERIFY_DISPLAY_RESPONSE, new byte[0], false);
+                break;
+            case VERIFY_CONFIRM_REQUEST:
+                ByteBuf pairingStatus = new ByteBuf(2);
+                pairingStatus.putShort(PairingStatus.CONFIRMED.getValue());
+                sendFrame(VERIFY_CONFIRM_RESPONSE, pairingStatus.getBytes(), false);
+                break;
+            case SYN_REQUEST:
+                sendFrame(SYN_ACK_RESPONSE, new byte[0], false);
+                break;
+            case DISCONNECT_REQUEST:
+                activatedServices.clear();
+                break;
+            case DATA:
+                onAppLayerMessage(payload);
+                break;
+        }
+    }
+
+    private void onKeyRequest(ByteBuf payload) throws Exception {
+        byte[] peerRandom = payload.readBytes(28);
+        int date = payload.readIntLE();
+        RSAKeyParameters peerKey = new RSAKeyParameters(false, new BigInteger(1, payload.getBytes(256)), BigInteger.valueOf(65537));
+        byte[] secret = new byte[16];
+        byte[] randomData = new byte[28];
+        random.nextBytes(secret);
+        random.nextBytes(randomData);
+        DerivedKeys peerKeys = Cryptograph.deriveKeys(secret, peerRandom, randomData);
+        derivedKeys = new DerivedKeys();
+        derivedKeys.setIncomingKey(peerKeys.getOutgoingKey());
+        derivedKeys.setOutgoingKey(peerKeys.getIncomingKey());
+        commID = random.nextInt() & 0x7FFFFFFF;
+        ByteBuf data = new ByteBuf(288);
+        data.putBytes(randomData);
+        data.putIntLE(date);
+        data.putBytes(encryptRSA(peerKey, secret));
+        sendFrame(KEY_RESPONSE, data.getBytes(), true);
+    }
+
+    private static byte[] encryptRSA(RSAKeyParameters key, byte[] data) throws InvalidCipherTextException {
+        OAEPEncoding cipher = new OAEPEncoding(new RSAEngine());
+        cipher.init(true, key);
+        return cipher.processBlock(data, 0, data.length);
+    }
+
+    private void onAppLayerMessage(ByteBuf request) throws Exception {
+        request.readByte();
+        byte service = request.readByte();
+        short command = request.readShort();
+        Integer count = requestCounts.get(command);
+        requestCounts.put(command, count == null ? 1 : count + 1);
+        ByteBuf response = new ByteBuf(256);
+        short error = NO_ERROR;
+        boolean crc = false;
+        if (service != Service.CONNECTION.getServiceID() && !activatedServices.contains(service)) error = NOT_AVAILABLE;
+        else switch (command) {
+            case (short) 0xCDF3:
+                response.putBytesLE(Arrays.copyOf("481".getBytes(), 16));
+                break;
+            case 0x0BF0:
+                break;
+            case 0x14F0:
+                activatedServices.clear();
+                break;
+            case (short) 0xD2F3:
+                serviceChallenge = new byte[16];
+                random.nextBytes(serviceChallenge);
+                response.putBytes(serviceChallenge);
+                break;
+            case (short) 0xF7F0:
+                error = activateService(request, response);
+                break;
+            case (short) 0xFC00:
+                response.putShort(pumpStatus.getValue());
+                crc = true;
+                break;
+            case (short) 0xA905:
+                response.putShort((short) 0);
+                putString(response, basalName, 62);
+                response.putShortLE((short) Math.round(basalAmount * 100F));
+                crc = true;
+                break;
+            case 0x3A03:
+                response.putBytes((byte) 0, 6);
+                response.putShortLE((short) Math.round(cartridgeAmount * 100F));
+                break;
+            case 0x2503:
+                response.putShort((short) 0);
+                response.putShortLE((short) batteryAmount);
+                break;
+            case (short) 0xB605:
+                putCurrentTBR(response);
+                crc = true;
+                break;
+            case 0x6F06:
+                putActiveBoluses(response);
+                crc = true;
+                break;
+            case (short) 0xD82E:
+                for (int length : new int[] {14, 12, 12, 12, 12, 12}) putString(response, "SIM-1.0", length);
+                response.putBytes((byte) 0, 8);
+                break;
+            case 0x4A05:
+                response.putIntLE(0);
+                break;
+            case (short) 0xE300:
+                putDateTime(response);
+                break;
+            case (short) 0xDA18:
+                for (int i = 0; i < 3; i++)
+                    response.putShort(pumpStatus == PumpStatus.STARTED ? BOLUS_AVAILABLE : (short) 0);
+                break;
+            case 0x031B:
+                error = deliverBolus(request, response);
+                crc = true;
+                break;
+            case (short) 0xE01B:
+                error = cancelBolus(request.readShortLE());
+                break;
+            case (short) 0xC518:
+            case 0x53A4:
+                tbrPercentage = request.readShortLE();
+                tbrDuration = request.readShortLE();
+                tbrStart = System.currentTimeMillis();
+                break;
+            case 0x3918:
+                tbrPercentage = 100;
+                tbrDuration = 0;
+                break;
+            case 0x2618:
+                PumpStatus status = PumpStatus.getPumpStatus(request.readShort());
+                if (status == pumpStatus) error = ALREADY_IN_THAT_STATE;
+                else pumpStatus = status;
+                break;
+            case 0x561E:
+                error = readConfigurationBlock(request.readShort(), response);
+                crc = true;
+                break;
+            default:
+                error = NOT_AVAILABLE;
+        }
+        ByteBuf message = new ByteBuf(8 + response.size());
+        message.putByte(VERSION);
+        message.putByte(service);
+        message.putShort(command);
+        message.putShort(error);
+        if (error == NO_ERROR) {
+            message.putBytes(response.getBytes());
+            if (crc) message.putShortLE((short) Cryptograph.calculateCRC(response));
+        }
+        if (responsesToDelay > 0) {
+            responsesToDelay--;
+            Thread.sleep(responseDelay);
+        }
+        if (responsesToDrop > 0) responsesToDrop--;
+        else sendFrame(DATA, message.getBytes(), false);
+    }
+
+    private short activateService(ByteBuf request, ByteBuf response) {
+        byte serviceID = request.readByte();
+        short version = request.readShort();
+        byte[] password = request.readBytes(16);
+        for (Service service : Service.values()) {
+            if (service.getServiceID() != serviceID) continue;
+            if (service.getServicePassword() != null && (serviceChallenge == null
+                    || !Arrays.equals(password, Cryptograph.getServicePasswordHash(service.getServicePassword(), serviceChallenge))))
+                return NOT_AVAILABLE;
+            activatedServices.add(serviceID);
+            response.putByte(serviceID);
+            response.putShort(version);
+            return NO_ERROR;
+        }
+        return NOT_AVAILABLE;
+    }
+
+    private short deliverBolus(ByteBuf request, ByteBuf response) {
+        request.shift(2);
+        short type = request.readShort();
+        request.shift(4);
+        Bolus bolus = new Bolus();
+        bolus.bolusID = nextBolusID++;
+        float amount;
+        if (type == (short) 0xE300) {
+            request.shift(2);
+            amount = request.readShortLE() / 100F;
+            bolus.type = BolusType.EXTENDED;
+            bolus.duration = request.readShortLE();
+            bolus.amount = amount;
+        } else if (type == (short) 0xFC00) {
+            float immediateAmount = request.readShortLE() / 100F;
+            bolus.amount = request.readShortLE() / 100F;
+            bolus.type = BolusType.MULTIWAVE;
+            bolus.duration = request.readShortLE();
+            amount = immediateAmount + bolus.amount;
+        } else {
+            amount = request.readShortLE() / 100F;
+        }
+        if (amount > maxBolusAmount) return BOLUS_AMOUNT_LIMIT_EXCEEDED;
+        if (pumpStatus != PumpStatus.STARTED) return NOT_AVAILABLE;
+        if (bolus.type != null) {
+            if (activeBoluses.size() == ACTIVE_BOLUS_SLOTS) return NOT_AVAILABLE;
+            activeBoluses.add(bolus);
+        }
+        deliveredBolusAmount += amount;
+        response.putShortLE(bolus.bolusID);
+        return NO_ERROR;
+    }
+
+    private short cancelBolus(short bolusID) {
+        for (Bolus bolus : activeBoluses) {
+            if (bolus.bolusID == bolusID) {
+                activeBoluses.remove(bolus);
+                return NO_ERROR;
+            }
+        }
+        return NOT_AVAILABLE;
+    }
+
+    private void putCurrentTBR(ByteBuf response) {
+        int leftover = tbrDuration - (int) ((System.currentTimeMillis() - tbrStart) / 60000L);
+        if (tbrDuration == 0 || leftover <= 0) {
+            tbrPercentage = 100;
+            tbrDuration = 0;
+            leftover = 0;
+        }
+        response.putShortLE((short) tbrPercentage);
+        response.putShortLE((short) leftover);
+        response.putShortLE((short) tbrDuration);
+    }
+
+    private void putActiveBoluses(ByteBuf response) {
+        for (int i = 0; i < ACTIVE_BOLUS_SLOTS; i++) {
+            if (i >= activeBoluses.size()) {
+                response.putBytes((byte) 0, 14);
+                continue;
+            }
+            Bolus bolus = activeBoluses.get(i);
+            response.putShortLE(bolus.bolusID);
+            response.putShort(bolus.type.getValue());
+            response.putBytes((byte) 0, 4);
+            response.putShortLE((short) Math.round(bolus.amount * 100F));
+            response.putShortLE((short) Math.round(bolus.amount * 100F));
+            response.putShortLE((short) bolus.duration);
+        }
+    }
+
+    private void putDateTime(ByteBuf response) {
+        Calendar calendar = Calendar.getInstance();
+        response.putShort((short) calendar.get(Calendar.YEAR));
+        response.putByte((byte) calendar.get(Calendar.MONTH));
+        response.putByte((byte) calendar.get(Calendar.DAY_OF_MONTH));
+        response.putByte((byte) calendar.get(Calendar.HOUR_OF_DAY));
+        response.putByte((byte) calendar.get(Calendar.MINUTE));
+        response.putByte((byte) calendar.get(Calendar.SECOND));
+    }
+
+    private short readConfigurationBlock(short blockID, ByteBuf response) {
+        float amount;
+        if (blockID == MaxBolusAmountBlock.ID || blockID == FactoryMaxBolusAmountBlock.ID) amount = maxBolusAmount;
+        else if (blockID == FactoryMinBolusAmountBlock.ID) amount = 0.1F;
+        else return NOT_AVAILABLE;
+        response.putShort(blockID);
+        response.putShort(RestrictionLevel.PUMP.getValue());
+        response.putShortLE((short) Math.round(amount * 100F));
+        return NO_ERROR;
+    }
+
+    //Strings are UTF-16LE, the parser reads them with twice the given length
+    private static void putString(ByteBuf byteBuf, String string, int length) {
+        byteBuf.putBytes(Arrays.copyOf(string.getBytes(UTF16LE), length * 2));
+    }
+
+    private void sendFrame(byte command, byte[] data, boolean crc) throws IOException {
+        short dataLength = (short) (data.length + (crc ? 2 : 0));
+        short length = (short) (29 + dataLength);
+        ByteBuf byteBuf = new ByteBuf(length + 8);
+        byteBuf.putBytes(MAGIC_HEADER);
+        byteBuf.putShortLE(length);
+        byteBuf.putShortLE((short) ~length);
+        byteBuf.putByte(VERSION);
+        byteBuf.putByte(command);
+        byteBuf.putShortLE(dataLength);
+        byteBuf.putIntLE(commID);
+        nonce.increment();
+        nonce.writeLE(byteBuf);
+        byteBuf.putBytes(data);
+        if (crc) {
+            byteBuf.putShortLE((short) Cryptograph.calculateCRC(byteBuf.slice(8, length - 10)));
+            byteBuf.putBytes((byte) 0x00, 8);
+        } else {
+            Cryptograph.encryptCCM(byteBuf.slice(16, 13), byteBuf.slice(8, 21),
+                    byteBuf.slice(29, dataLength), derivedKeys.getOutgoingCipher(), byteBuf);
+            if (command == DATA && responsesToCorrupt > 0) {
+                responsesToCorrupt--;
+                byteBuf.array()[byteBuf.arrayOffset() + byteBuf.size() - 1] ^= 0x01;
+            }
+        }
+        outputStream.write(byteBuf.array(), byteBuf.arrayOffset(), byteBuf.size());
+        outputStream.flush();
+    }
+
+    private static class Bolus {
+        private short bolusID;
+        private BolusType type;
+        private float amount;
+        private int duration;
+    }
+}
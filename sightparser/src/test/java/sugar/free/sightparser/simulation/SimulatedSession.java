@@ -0,0 +1,144 @@
+package sugar.free.sightparser.simulation;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import sugar.free.sightparser.DataStorage;
+import sugar.free.sightparser.applayer.AppLayerMessage;
+import sugar.free.sightparser.handling.MessageCallback;
+import sugar.free.sightparser.handling.MessageRequest;
+import sugar.free.sightparser.handling.StatusCallback;
+import sugar.free.sightparser.pipeline.Pipeline;
+import sugar.free.sightparser.pipeline.Status;
+
+/**
+ * A {@link Pipeline} talking to a {@link SimulatedPump}, with its reader thread running. The
+ * first connect pairs, later ones reuse the stored keys like the service does.
+ */
+public class SimulatedSession {
+
+    private static final long TIMEOUT = 10000;
+
+    private final DataStorage dataStorage = new DataStorage(new SimulatedPreferences());
+    @Getter
+    private final SimulatedPump simulatedPump;
+    @Getter
+    private Pipeline pipeline;
+    private SimulatedTransport transport;
+    private Thread readerThread;
+    private Status status = Status.DISCONNECTED;
+
+    public SimulatedSession(SimulatedPump simulatedPump) {
+        this.simulatedPump = simulatedPump;
+    }
+
+    public void connect(long latencyMillis) throws Exception {
+        pipeline = createPipeline(dataStorage, new StatusCallback() {
+            @Override
+            public void onStatusChange(Status status) {
+                synchronized (SimulatedSession.this) {
+                    SimulatedSession.this.status = status;
+                    SimulatedSession.this.notifyAll();
+                }
+            }
+        });
+        transport = new SimulatedTransport(simulatedPump, latencyMillis);
+        transport.connect();
+        pipeline.setTransport(transport);
+        pipeline.setStatus(Status.CONNECTING);
+        final Pipeline pipeline = this.pipeline;
+        //Reads and shuts down the way SightService's connection thread does
+        readerThread = new Thread("SimulatedSession") {
+            @Override
+            public void run() {
+                pipeline.readUntilDisconnected();
+                pipeline.close();
+            }
+
+            @Override
+            public void interrupt() {
+                super.interrupt();
+                pipeline.abort();
+            }
+        };
+        readerThread.setDaemon(true);
+        readerThread.start();
+        if (dataStorage.contains("INCOMINGKEY")) pipeline.establishConnection();
+        else pipeline.establishPairing();
+        awaitStatus(Status.CONNECTED);
+    }
+
+    protected Pipeline createPipeline(DataStorage dataStorage, StatusCallback statusCallback) {
+        return new Pipeline(dataStorage, statusCallback);
+    }
+
+    public void disconnect() throws Exception {
+        pipeline.disconnect();
+        transport.close();
+        readerThread.join(TIMEOUT);
+        pipeline.close();
+    }
+
+    /**
+     * Interrupts the reader thread like {@code SightService.disconnect()} does and returns
+     * whether it stopped.
+     */
+    public boolean interrupt() throws Exception {
+        readerThread.interrupt();
+        readerThread.join(TIMEOUT);
+        return !readerThread.isAlive();
+    }
+
+    private synchronized void awaitStatus(Status expected) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (status != expected) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) throw new IllegalStateException("Status " + status + " instead of " + expected);
+            wait(wait);
+        }
+    }
+
+    /**
+     * Sends a request and waits for its response, throwing the error it failed with instead.
+     */
+    public <T extends AppLayerMessage> T request(AppLayerMessage message) throws Exception {
+        return submit(message).get();
+    }
+
+    public Response submit(AppLayerMessage message) {
+        Response response = new Response(message);
+        pipeline.requestMessage(new MessageRequest(message, response.messageCallback));
+        return response;
+    }
+
+    public static class Response {
+
+        private final AppLayerMessage request;
+        private final BlockingQueue<Object> result = new ArrayBlockingQueue<>(1);
+        private final MessageCallback messageCallback = new MessageCallback() {
+            @Override
+            public void onMessage(AppLayerMessage message) {
+                result.add(message);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                result.add(e);
+            }
+        };
+
+        private Response(AppLayerMessage request) {
+            this.request = request;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T extends AppLayerMessage> T get() throws Exception {
+            Object response = result.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            if (response == null) throw new IllegalStateException("No response to " + request.getClass().getSimpleName());
+            if (response instanceof Exception) throw (Exception) response;
+            return (T) response;
+        }
+    }
+}
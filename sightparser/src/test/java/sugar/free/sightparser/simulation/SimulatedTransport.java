@@ -0,0 +1,45 @@
+package sugar.free.sightparser.simulation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import sugar.free.sightparser.pipeline.Transport;
+
+public class SimulatedTransport implements Transport {
+
+    private SimulatedPump simulatedPump;
+    private SimulatedLink toPump;
+    private SimulatedLink fromPump;
+
+    public SimulatedTransport(SimulatedPump simulatedPump) {
+        this(simulatedPump, 0);
+    }
+
+    public SimulatedTransport(SimulatedPump simulatedPump, long latencyMillis) {
+        this.simulatedPump = simulatedPump;
+        toPump = new SimulatedLink(latencyMillis);
+        fromPump = new SimulatedLink(latencyMillis);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        simulatedPump.start(toPump.getInputStream(), fromPump.getOutputStream());
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return fromPump.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return toPump.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        toPump.close();
+        fromPump.close();
+    }
+}